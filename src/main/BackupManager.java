@@ -0,0 +1,176 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps rotating generations of backups of the save file, taken
+ * on a background thread.
+ *
+ * A backup is taken every few mutations and on a schedule. It is a hard link
+ * to the last snapshot: snapshots are never changed in place, only replaced
+ * by a rename, so the link keeps the old content for free. Where hard links
+ * are not supported the snapshot is copied. A snapshot that is the same as
+ * the newest backup is not backed up again, and a damaged snapshot is never
+ * backed up.
+ *
+ * The newest backup is backup.txt, older ones are backup.1.txt,
+ * backup.2.txt and so on.
+ */
+public class BackupManager {
+    private static final Logger logger = Logger.getLogger(BackupManager.class.getName());
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String GENERATION_SEPARATOR = ".";
+
+    private File backupFile;
+    private int generations;
+    private int mutationsPerBackup;
+    private Predicate<File> isGoodSnapshot;
+    private volatile File snapshotFile;
+
+    private AtomicInteger mutations = new AtomicInteger();
+    private ScheduledExecutorService executor;
+    private Future<?> pendingBackup;
+
+    /**
+     * @param snapshotFile       the save file to back up
+     * @param backupFile         the newest backup
+     * @param generations        how many backups are kept
+     * @param mutationsPerBackup take a backup after this many mutations
+     * @param intervalMinutes    also take one this often if anything changed
+     * @param isGoodSnapshot     checks that a snapshot is not damaged
+     */
+    public BackupManager(File snapshotFile, File backupFile, int generations,
+                         int mutationsPerBackup, long intervalMinutes,
+                         Predicate<File> isGoodSnapshot) {
+        this.snapshotFile = snapshotFile;
+        this.backupFile = backupFile;
+        this.generations = Math.max(1, generations);
+        this.mutationsPerBackup = Math.max(1, mutationsPerBackup);
+        this.isGoodSnapshot = isGoodSnapshot;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (intervalMinutes > 0) {
+            executor.scheduleWithFixedDelay(() -> {
+                if (mutations.get() > 0) {
+                    takeBackup();
+                }
+            }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    public File getBackupFile() {
+        return backupFile;
+    }
+
+    // Follows the save file when it is moved or changed
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    // Counts mutations and asks for a backup once there are enough
+    public void recordMutations(int count) {
+        if (mutations.addAndGet(count) >= mutationsPerBackup) {
+            requestBackup();
+        }
+    }
+
+    // Takes a backup in the background, unless one is already waiting
+    public synchronized void requestBackup() {
+        if (pendingBackup == null || pendingBackup.isDone()) {
+            pendingBackup = executor.submit(this::takeBackup);
+        }
+    }
+
+    /**
+     * Gets a backup by its age.
+     *
+     * @param generation 0 for the newest backup
+     */
+    public File getGenerationFile(int generation) {
+        if (generation == 0) {
+            return backupFile;
+        }
+        String name = backupFile.getName();
+        int extension = name.lastIndexOf(GENERATION_SEPARATOR);
+        if (extension < 0) {
+            extension = name.length();
+        }
+        return new File(backupFile.getParentFile(), name.substring(0, extension)
+                        + GENERATION_SEPARATOR + generation + name.substring(extension));
+    }
+
+    // ================================================================
+    // Private methods (backup thread)
+    // ================================================================
+    private void takeBackup() {
+        mutations.set(0);
+        File snapshot = snapshotFile;
+        try {
+            if (!snapshot.exists() || isSameAsNewestBackup(snapshot)) {
+                return;
+            }
+            if (!isGoodSnapshot.test(snapshot)) {
+                logger.log(Level.WARNING, "Not backing up damaged save file " + snapshot);
+                return;
+            }
+            File tempFile = new File(backupFile.getPath() + TEMP_FILE_SUFFIX);
+            Files.deleteIfExists(tempFile.toPath());
+            linkOrCopy(snapshot, tempFile);
+            rotateGenerations();
+            Files.move(tempFile.toPath(), backupFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isSameAsNewestBackup(File snapshot) throws IOException {
+        if (!backupFile.exists()) {
+            return false;
+        }
+        return Files.isSameFile(snapshot.toPath(), backupFile.toPath())
+                || FileMover.hasSameContent(snapshot, backupFile);
+    }
+
+    private void linkOrCopy(File snapshot, File destination) throws IOException {
+        try {
+            Files.createLink(destination.toPath(), snapshot.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(snapshot.toPath(), destination.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Drops the oldest backup and makes room for a new one
+    private void rotateGenerations() throws IOException {
+        File oldest = getGenerationFile(generations - 1);
+        // backups from older versions were kept read-only
+        oldest.setWritable(true);
+        Files.deleteIfExists(oldest.toPath());
+        for (int generation = generations - 2; generation >= 0; generation--) {
+            File file = getGenerationFile(generation);
+            if (file.exists()) {
+                Files.move(file.toPath(), getGenerationFile(generation + 1).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
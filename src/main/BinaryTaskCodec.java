@@ -0,0 +1,547 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class reads and writes task files in a compact binary format.
+ *
+ * The file starts with a magic number, a version and, since version 4, a
+ * byte of file flags, followed by records. Every record is
+ * [int length][byte kind][payload], so a reader can skip kinds it does not
+ * know. If the FILE_CHECKSUMS flag is set, every record is followed by the
+ * CRC-32 of its kind and payload.
+ *
+ * STRING record: int index, then the UTF-8 bytes of a string that later
+ * tasks refer to by that index. Used for rawInfo and recurId, which recurring
+ * tasks all share. Before version 5 the index was left out and strings were
+ * numbered in file order, so a skipped STRING record shifted the index of
+ * every string after it.
+ *
+ * TASK record:
+ * long taskId, byte flags, then only the fields the flags say are present:
+ * int epoch-day date, int second-of-day start and end time, int rawInfo
+ * index, description, int recurId index, int count and the epoch-day
+ * exception dates. Since version 2, completed tasks end with the epoch-day
+ * they were completed on, or NO_DATE.
+ *
+ * SERIES record (since version 3): int recurId index, byte flags, then the
+ * fields shared by every instance of the series: int rawInfo index,
+ * description, byte type, int second-of-day start and end time, int count and
+ * the epoch-day exception dates. It comes before the first instance, and the
+ * instances leave those fields out.
+ */
+public class BinaryTaskCodec implements TaskCodec {
+    private static final int MAGIC = 0x46494E42; // "FINB"
+    private static final byte VERSION = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MIN_MAPPED_SIZE = 1024 * 1024;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte RECORD_STRING = 1;
+    private static final byte RECORD_TASK = 2;
+    private static final byte RECORD_SERIES = 3;
+
+    // flags in the file header, since version 4
+    private static final int FILE_CHECKSUMS = 0x01;
+
+    // the two lowest bits of the flags hold the task type
+    private static final int FLAG_TYPE_MASK = 0x03;
+    private static final int FLAG_COMPLETED = 0x04;
+    private static final int FLAG_DATE = 0x08;
+    private static final int FLAG_START_TIME = 0x10;
+    private static final int FLAG_END_TIME = 0x20;
+    private static final int FLAG_RECURRING = 0x40;
+    private static final int FLAG_EXCEPTIONS = 0x80;
+
+    // flags of a SERIES record, one per shared field
+    private static final int SHARED_RAW_INFO = 0x01;
+    private static final int SHARED_DESCRIPTION = 0x02;
+    private static final int SHARED_TYPE = 0x04;
+    private static final int SHARED_START_TIME = 0x08;
+    private static final int SHARED_END_TIME = 0x10;
+    private static final int SHARED_EXCEPTIONS = 0x20;
+
+    // a header without shared fields, so every field of a task is written
+    private static final SeriesHeader EMPTY_HEADER = new SeriesHeader();
+
+    private static final int NO_STRING = -1;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final Task.Type[] TYPES = Task.Type.values();
+
+    private boolean hasChecksums;
+
+    public BinaryTaskCodec(boolean hasChecksums) {
+        this.hasChecksums = hasChecksums;
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    // Checks the magic number, so the file can be read in either format
+    public static boolean isBinaryFile(File file) {
+        if (file.length() < Integer.BYTES) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void write(File file, List<Task> tasks) throws IOException {
+        HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+        LinkedHashMap<String, SeriesHeader> headers = SeriesHeader.createHeaders(tasks);
+        HashSet<String> writtenSeries = new HashSet<String>();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(channel), BUFFER_SIZE))) {
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+            output.writeByte(hasChecksums ? FILE_CHECKSUMS : 0);
+            for (Task task : tasks) {
+                int rawInfoIndex = writeStringIfNew(output, recordBytes, dictionary,
+                                                    task.getRawInfo());
+                int recurIdIndex = writeStringIfNew(output, recordBytes, dictionary,
+                                                    task.getId());
+                SeriesHeader header = task.isRecurring() ? headers.get(task.getId()) : null;
+
+                if (header != null && writtenSeries.add(task.getId())) {
+                    recordBytes.reset();
+                    record.writeByte(RECORD_SERIES);
+                    writeSeries(record, header, dictionary.get(header.getRawInfo()),
+                                recurIdIndex);
+                    writeRecord(output, recordBytes);
+                }
+                recordBytes.reset();
+                record.writeByte(RECORD_TASK);
+                writeTask(record, task, header == null ? EMPTY_HEADER : header,
+                          rawInfoIndex, recurIdIndex);
+                writeRecord(output, recordBytes);
+            }
+        }
+    }
+
+    /**
+     * Reads every task in the file.
+     *
+     * @throws IOException if the file is not in this format or is damaged
+     */
+    @Override
+    public ArrayList<Task> read(File file) throws IOException {
+        RecoveredTasks recovered = recover(file, null);
+        if (!recovered.isComplete()) {
+            throw new IOException("Damaged record in " + file + ", "
+                                  + recovered.getSkippedRecords().get(0));
+        }
+        return recovered.getTasks();
+    }
+
+    /**
+     * Reads every intact record in the file. A record that cannot be decoded
+     * is skipped. A damaged length ends the file, unless it has checksums:
+     * then the next record whose checksum matches is searched for.
+     */
+    @Override
+    public RecoveredTasks recover(File file, Long stopAfterTaskId) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            bytes = load(channel);
+        }
+        byte version;
+        int fileFlags = 0;
+        try {
+            if (bytes.getInt() != MAGIC || (version = bytes.get()) > VERSION) {
+                throw new IOException("Not a binary save file: " + file);
+            }
+            if (version >= 4) {
+                fileFlags = bytes.get();
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Not a binary save file: " + file, e);
+        }
+        boolean hasChecksums = (fileFlags & FILE_CHECKSUMS) != 0;
+
+        ArrayList<Task> records = new ArrayList<Task>();
+        ArrayList<String> skippedRecords = new ArrayList<String>();
+        ArrayList<String> dictionary = new ArrayList<String>();
+        while (bytes.remaining() >= Integer.BYTES) {
+            int start = bytes.position();
+            int length = bytes.getInt(start);
+            if (!isRecordAt(bytes, start, hasChecksums)) {
+                records.add(null);
+                skippedRecords.add("record at byte " + start + ": "
+                                   + (isValidLength(bytes, start, length, hasChecksums)
+                                      ? "checksum does not match" : "damaged length"));
+                int next = hasChecksums ? findNextRecord(bytes, start + 1) : bytes.limit();
+                bytes.position(next);
+                continue;
+            }
+            ByteBuffer record = bytes.duplicate();
+            record.limit(start + Integer.BYTES + length).position(start + Integer.BYTES);
+            bytes.position(start + Integer.BYTES + length + (hasChecksums ? Integer.BYTES : 0));
+            Task task;
+            try {
+                task = readRecord(record, version, dictionary);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException
+                    | IllegalArgumentException | DateTimeException e) {
+                records.add(null);
+                skippedRecords.add("record at byte " + start + ": " + e);
+                continue;
+            }
+            if (task == null) {
+                continue;
+            }
+            records.add(task);
+            if (stopAfterTaskId != null && !(task instanceof SeriesHeader)
+                    && task.getTaskId() == stopAfterTaskId) {
+                return new RecoveredTasks(records, skippedRecords);
+            }
+        }
+        if (bytes.hasRemaining()) {
+            records.add(null);
+            skippedRecords.add("record at byte " + bytes.position() + ": cut off");
+        }
+        return new RecoveredTasks(records, skippedRecords);
+    }
+
+    // ================================================================
+    // Writing
+    // ================================================================
+    private int writeStringIfNew(DataOutputStream output, ByteArrayOutputStream recordBytes,
+                                 HashMap<String, Integer> dictionary,
+                                 String value) throws IOException {
+        if (value == null) {
+            return NO_STRING;
+        }
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(value, index);
+            recordBytes.reset();
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            record.writeByte(RECORD_STRING);
+            record.writeInt(index);
+            record.write(value.getBytes(StandardCharsets.UTF_8));
+            writeRecord(output, recordBytes);
+        }
+        return index;
+    }
+
+    // Leaves out the fields that the header of the series holds
+    private void writeTask(DataOutputStream record, Task task, SeriesHeader header,
+                           int rawInfoIndex, int recurIdIndex) throws IOException {
+        LocalDate date = task.getDate();
+        LocalTime startTime = header.getStartTime() == null ? task.getStartTime() : null;
+        LocalTime endTime = header.getEndTime() == null ? task.getEndTime() : null;
+        ArrayList<LocalDate> exceptionDates = header.getExceptionDates() == null
+                ? task.getExceptionDates() : null;
+
+        int flags = typeOf(header.getType() == null ? task : header).ordinal();
+        flags |= task.isCompleted() ? FLAG_COMPLETED : 0;
+        flags |= date != null ? FLAG_DATE : 0;
+        flags |= startTime != null ? FLAG_START_TIME : 0;
+        flags |= endTime != null ? FLAG_END_TIME : 0;
+        flags |= recurIdIndex != NO_STRING ? FLAG_RECURRING : 0;
+        flags |= exceptionDates != null ? FLAG_EXCEPTIONS : 0;
+
+        record.writeLong(task.getTaskId());
+        record.writeByte(flags);
+        if (date != null) {
+            record.writeInt((int) date.toEpochDay());
+        }
+        if (startTime != null) {
+            record.writeInt(startTime.toSecondOfDay());
+        }
+        if (endTime != null) {
+            record.writeInt(endTime.toSecondOfDay());
+        }
+        record.writeInt(header.getRawInfo() == null ? rawInfoIndex : NO_STRING);
+        writeBytes(record, header.getDescription() == null ? task.getDescription() : null);
+        if (recurIdIndex != NO_STRING) {
+            record.writeInt(recurIdIndex);
+        }
+        if (exceptionDates != null) {
+            writeDates(record, exceptionDates);
+        }
+        if (task.isCompleted()) {
+            LocalDate completedDate = task.getCompletedDate();
+            record.writeInt(completedDate == null ? NO_DATE : (int) completedDate.toEpochDay());
+        }
+    }
+
+    private void writeSeries(DataOutputStream record, SeriesHeader header,
+                             Integer rawInfoIndex, int recurIdIndex) throws IOException {
+        int flags = 0;
+        flags |= header.getRawInfo() != null ? SHARED_RAW_INFO : 0;
+        flags |= header.getDescription() != null ? SHARED_DESCRIPTION : 0;
+        flags |= header.getType() != null ? SHARED_TYPE : 0;
+        flags |= header.getStartTime() != null ? SHARED_START_TIME : 0;
+        flags |= header.getEndTime() != null ? SHARED_END_TIME : 0;
+        flags |= header.getExceptionDates() != null ? SHARED_EXCEPTIONS : 0;
+
+        record.writeInt(recurIdIndex);
+        record.writeByte(flags);
+        if (header.getRawInfo() != null) {
+            record.writeInt(rawInfoIndex);
+        }
+        if (header.getDescription() != null) {
+            writeBytes(record, header.getDescription());
+        }
+        if (header.getType() != null) {
+            record.writeByte(header.getType().ordinal());
+        }
+        if (header.getStartTime() != null) {
+            record.writeInt(header.getStartTime().toSecondOfDay());
+        }
+        if (header.getEndTime() != null) {
+            record.writeInt(header.getEndTime().toSecondOfDay());
+        }
+        if (header.getExceptionDates() != null) {
+            writeDates(record, header.getExceptionDates());
+        }
+    }
+
+    private Task.Type typeOf(Task task) {
+        return task.getType() == null ? Task.Type.FLOATING : task.getType();
+    }
+
+    private void writeDates(DataOutputStream record, ArrayList<LocalDate> dates)
+            throws IOException {
+        record.writeInt(dates.size());
+        for (LocalDate date : dates) {
+            record.writeInt((int) date.toEpochDay());
+        }
+    }
+
+    private void writeBytes(DataOutputStream record, String value) throws IOException {
+        if (value == null) {
+            record.writeInt(NO_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    private void writeRecord(DataOutputStream output, ByteArrayOutputStream recordBytes)
+            throws IOException {
+        output.writeInt(recordBytes.size());
+        recordBytes.writeTo(output);
+        if (hasChecksums) {
+            CRC32 checksum = new CRC32();
+            checksum.update(recordBytes.toByteArray());
+            output.writeInt((int) checksum.getValue());
+        }
+    }
+
+    // ================================================================
+    // Reading
+    // ================================================================
+    // Returns the task or series header in the record, or null for others
+    private Task readRecord(ByteBuffer record, byte version, ArrayList<String> dictionary) {
+        switch (record.get()) {
+            case RECORD_STRING :
+                readDictionaryString(record, version, dictionary);
+                return null;
+            case RECORD_TASK :
+                return readTask(record, version, dictionary);
+            case RECORD_SERIES :
+                return readSeries(record, dictionary);
+            default :
+                // written by a newer version, skip it
+                return null;
+        }
+    }
+
+    private Task readTask(ByteBuffer record, byte version, ArrayList<String> dictionary) {
+        Task task = new Task();
+        task.setTaskId(record.getLong());
+        int flags = record.get() & 0xFF;
+        task.setType(TYPES[flags & FLAG_TYPE_MASK]);
+        task.setIsCompleted((flags & FLAG_COMPLETED) != 0);
+        if ((flags & FLAG_DATE) != 0) {
+            task.setDate(LocalDate.ofEpochDay(record.getInt()));
+        }
+        if ((flags & FLAG_START_TIME) != 0) {
+            task.setStartTime(LocalTime.ofSecondOfDay(record.getInt()));
+        }
+        if ((flags & FLAG_END_TIME) != 0) {
+            task.setEndTime(LocalTime.ofSecondOfDay(record.getInt()));
+        }
+        task.setRawInfo(lookUp(dictionary, record.getInt()));
+        int descriptionLength = record.getInt();
+        if (descriptionLength != NO_STRING) {
+            task.setDescription(readString(record, descriptionLength));
+        }
+        if ((flags & FLAG_RECURRING) != 0) {
+            task.setId(lookUp(dictionary, record.getInt()));
+        }
+        if ((flags & FLAG_EXCEPTIONS) != 0) {
+            task.setException(readDates(record));
+        }
+        if ((flags & FLAG_COMPLETED) != 0 && version >= 2) {
+            int completedDay = record.getInt();
+            if (completedDay != NO_DATE) {
+                task.setCompletedDate(LocalDate.ofEpochDay(completedDay));
+            }
+        }
+        return task;
+    }
+
+    private SeriesHeader readSeries(ByteBuffer record, ArrayList<String> dictionary) {
+        SeriesHeader header = new SeriesHeader();
+        header.setId(lookUp(dictionary, record.getInt()));
+        int flags = record.get() & 0xFF;
+        if ((flags & SHARED_RAW_INFO) != 0) {
+            header.setRawInfo(lookUp(dictionary, record.getInt()));
+        }
+        if ((flags & SHARED_DESCRIPTION) != 0) {
+            header.setDescription(readString(record, record.getInt()));
+        }
+        if ((flags & SHARED_TYPE) != 0) {
+            header.setType(TYPES[record.get()]);
+        }
+        if ((flags & SHARED_START_TIME) != 0) {
+            header.setStartTime(LocalTime.ofSecondOfDay(record.getInt()));
+        }
+        if ((flags & SHARED_END_TIME) != 0) {
+            header.setEndTime(LocalTime.ofSecondOfDay(record.getInt()));
+        }
+        if ((flags & SHARED_EXCEPTIONS) != 0) {
+            header.setException(readDates(record));
+        }
+        return header;
+    }
+
+    private ArrayList<LocalDate> readDates(ByteBuffer record) {
+        int count = record.getInt();
+        ArrayList<LocalDate> dates = new ArrayList<LocalDate>(
+                Math.min(count, record.remaining() / Integer.BYTES));
+        for (int i = 0; i < count; i++) {
+            dates.add(LocalDate.ofEpochDay(record.getInt()));
+        }
+        return dates;
+    }
+
+    private String readString(ByteBuffer record, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // A skipped STRING record leaves its index null, and only the tasks
+    // that refer to it are skipped
+    private void readDictionaryString(ByteBuffer record, byte version,
+                                      ArrayList<String> dictionary) {
+        if (version < 5) {
+            // numbered in file order, so a string that cannot be decoded is
+            // kept as null to keep the later indexes
+            dictionary.add(null);
+            dictionary.set(dictionary.size() - 1, readString(record, record.remaining()));
+            return;
+        }
+        int index = record.getInt();
+        // every string has a record of its own, so there are fewer strings
+        // than bytes up to here
+        if (index < 0 || index > record.limit()) {
+            throw new IllegalArgumentException("string index " + index);
+        }
+        String value = readString(record, record.remaining());
+        while (dictionary.size() <= index) {
+            dictionary.add(null);
+        }
+        dictionary.set(index, value);
+    }
+
+    private String lookUp(ArrayList<String> dictionary, int index) {
+        if (index == NO_STRING) {
+            return null;
+        }
+        String value = index < dictionary.size() ? dictionary.get(index) : null;
+        if (value == null) {
+            throw new IllegalArgumentException("string " + index + " is damaged");
+        }
+        return value;
+    }
+
+    // ================================================================
+    // Recovery
+    // ================================================================
+
+    // Large files are memory-mapped, small ones are read into the heap
+    private ByteBuffer load(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size >= MIN_MAPPED_SIZE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) size);
+        while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) > 0) {
+            // read until the buffer is full
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    private boolean isValidLength(ByteBuffer bytes, int start, int length, boolean hasChecksums) {
+        long end = (long) start + Integer.BYTES + length + (hasChecksums ? Integer.BYTES : 0);
+        return length > 0 && length <= MAX_RECORD_LENGTH && end <= bytes.limit();
+    }
+
+    // Checks the length and, if the file has them, the checksum of a record
+    private boolean isRecordAt(ByteBuffer bytes, int start, boolean hasChecksums) {
+        int length = bytes.getInt(start);
+        if (!isValidLength(bytes, start, length, hasChecksums)) {
+            return false;
+        }
+        if (!hasChecksums) {
+            return true;
+        }
+        ByteBuffer record = bytes.duplicate();
+        record.limit(start + Integer.BYTES + length).position(start + Integer.BYTES);
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+        return (int) checksum.getValue() == bytes.getInt(start + Integer.BYTES + length);
+    }
+
+    // Scans for the next position that holds a record with a matching checksum
+    private int findNextRecord(ByteBuffer bytes, int position) {
+        for (; position <= bytes.limit() - Integer.BYTES; position++) {
+            if (isRecordAt(bytes, position, true)) {
+                return position;
+            }
+        }
+        return bytes.limit();
+    }
+}
@@ -4,8 +4,8 @@ import java.util.ArrayList;
 
 public class Command {
     public static enum Type {
-        ADD, DISPLAY, DELETE, EDIT, COMPLETE, INCOMPLETE, UNDO, SEARCH, EXIT,
-        SET, CLEAR, HELP, INVALID, MOVE
+        ADD, DISPLAY, DELETE, EDIT, COMPLETE, INCOMPLETE, UNDO, REDO, SEARCH, EXIT,
+        SET, CLEAR, HELP, INVALID, MOVE, IMPORT
     };
 
     private static final int PARAM_POSITION_COMMAND = 0;
@@ -71,6 +71,8 @@ public class Command {
                 return Type.INCOMPLETE;
             case "undo" :
                 return Type.UNDO;
+            case "redo" :
+                return Type.REDO;
             case "search" :
                 return Type.SEARCH;
             case "help" :
@@ -83,6 +85,8 @@ public class Command {
                 return Type.MOVE;
             case "clear" :
                 return Type.CLEAR;
+            case "import" :
+                return Type.IMPORT;
             default :
                 return Type.INVALID;
         }
@@ -1,15 +1,21 @@
 package main;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.stage.Stage;
 import main.view.DisplayController;
 
+import java.io.File;
+import java.io.IOException;
 import java.time.DateTimeException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class Controller {
     private Stage stage;
@@ -20,7 +26,9 @@ public class Controller {
     private CreateTask taskCreator;
     private DisplayController displayController = DisplayController.getInstance();
     
-    private ArrayList<Task> allTasks;
+    private TaskList allTasks = TaskList.empty(); // also finds tasks by id
+    private TaskIndexes taskIndexes = new TaskIndexes(); // kept by setAllTasks
+    private ArrayList<Task> archivedTasks; // loaded on first use
     private ObservableList<Task> displayedTasks = FXCollections.observableArrayList();
     private String searchArgument;
 
@@ -30,10 +38,11 @@ public class Controller {
         parser = DateParser.getInstance();
         storage = Storage.getInstance();
         taskCreator = CreateTask.getInstance();
-        allTasks = storage.readFile();
-        previousStates = new History();       
+        setAllTasks(TaskList.of(storage.readFile()));
+        previousStates = storage.createHistory();
         loadIncompleteTasks();
         warmUpParser();
+        storage.watchSaveFile(entries -> Platform.runLater(() -> applyExternalChanges(entries)));
     }
 
 	public static Controller getInstance() {
@@ -54,7 +63,11 @@ public class Controller {
     // Public methods
     // ================================================================
     public String getWelcomeMessage() {
-        return "Welcome to Fini!";
+        if (storage.isReadOnly()) {
+            return "Welcome to Fini! Changes will not be saved, as "
+                    + storage.getReadOnlyReason() + "." + getRecoveryMessage();
+        }
+        return "Welcome to Fini!" + getRecoveryMessage();
     }
 
     // Based on what the user has type, this method will call the respective methods
@@ -74,6 +87,12 @@ public class Controller {
             case MOVE :
                 feedback = moveSaveFileDirectory(arguments);
                 break;
+
+            case IMPORT :
+                saveCurrentState(input);
+                feedback = importTasks(arguments);
+                switchDisplayToSearch = false;
+                break;
 	        
         	case ADD :
 	            saveCurrentState(input);
@@ -82,11 +101,13 @@ public class Controller {
 	            break; 
 	        
         	case DELETE :
+	            restoreArchivedTasks(arguments);
 	            saveCurrentState(input);
 	            feedback = deleteTask(arguments);
 	            break;
 	        
         	case EDIT :
+	            restoreArchivedTasks(arguments);
 	            saveCurrentState(input);
 	            feedback = editTask(arguments);
 	            break;
@@ -101,6 +122,7 @@ public class Controller {
 	            break;
 	        
         	case INCOMPLETE :
+	            restoreArchivedTasks(arguments);
 	            saveCurrentState(input);
                 feedback = incompleteTask(arguments);
 	            break;
@@ -109,6 +131,10 @@ public class Controller {
 	            feedback = undo();
 	            break;
 	        
+        	case REDO :
+	            feedback = redo();
+	            break;
+	        
         	case SEARCH :
 	            search(arguments);
                 searchArgument = arguments;
@@ -116,6 +142,7 @@ public class Controller {
 	            break;
 	        
         	case CLEAR :
+	        	restoreAllArchivedTasks();
 	        	saveCurrentState(input);
 	        	feedback = clear();
 	        	break;
@@ -133,6 +160,13 @@ public class Controller {
                 stage.hide();
 	            break;
         }
+        previousStates.storeResultingState(allTasks);
+        // writes happen in the background, so a failure shows up here
+        if (storage.isReadOnly()) {
+            feedback += " Changes will not be saved, as " + storage.getReadOnlyReason() + ".";
+        } else if (storage.hasFailedWrites()) {
+            feedback += " Changes could not be saved yet, Fini keeps trying.";
+        }
         showAppropriateDisplay(helpUser);
         displayController.setFeedback(feedback);
         return feedback;
@@ -153,7 +187,7 @@ public class Controller {
 
 	// Load the incomplete tasks into displayedTasks
 	private void loadIncompleteTasks() {
-		for (Task task : getIncompleteTasks(allTasks)) {
+		for (Task task : getIncompleteTasks()) {
             displayedTasks.add(task);
         }
 	}
@@ -166,20 +200,24 @@ public class Controller {
 	    return displayedTasks;
 	}
 
-    private ArrayList<Task> getIncompleteTasks(ArrayList<Task> allTasks) {
-        List<Task> incompleteTasks = allTasks.stream()
-                .filter(task -> !task.isCompleted())
-                .collect(Collectors.toList());
-        return (ArrayList<Task>) incompleteTasks;
+    private ArrayList<Task> getIncompleteTasks() {
+        return new ArrayList<Task>(taskIndexes.getOpenTasks());
     }
 
-    private List<Task> getCompletedTasks(ArrayList<Task> allTasks) {
-        List<Task> completedTasks = allTasks.stream()
-                .filter(task -> task.isCompleted())
-                .collect(Collectors.toList());
+    private List<Task> getCompletedTasks() {
+        ArrayList<Task> completedTasks = new ArrayList<Task>(taskIndexes.getCompletedTasks());
+        completedTasks.addAll(getArchivedTasks());
         return completedTasks;
     }
 
+    // Completed tasks that were archived are only read when they are needed
+    private ArrayList<Task> getArchivedTasks() {
+        if (archivedTasks == null) {
+            archivedTasks = storage.readArchive();
+        }
+        return archivedTasks;
+    }
+
     // ================================================================
     // Logic methods
     // ================================================================
@@ -208,8 +246,8 @@ public class Controller {
         } catch (IndexOutOfBoundsException e) {
             return "Invalid command.";
         }
-        allTasks.addAll(newTask);
-        updateStorageWithAllTasks();
+        addToAllTasks(newTask);
+        storage.addTasks(newTask);
         return String.format("Task has been successfully added: %s", task);
     }
 
@@ -235,7 +273,7 @@ public class Controller {
             inputArray = input.split(" ");
             // ArrayList is 0-indexed, but Tasks are displayed to users as 1-indexed
             editIndex = Integer.parseInt(inputArray[0]) - 1;
-            editTask = displayedTasks.get(editIndex);
+            editTask = findTask(displayedTasks.get(editIndex));
         } catch (IndexOutOfBoundsException | NumberFormatException e) {
             return "The task you specified could not be found.";
         }
@@ -276,7 +314,7 @@ public class Controller {
         try {
             // ArrayList is 0-indexed, but Tasks are displayed to users as 1-indexed
             int removalIndex = Integer.parseInt(input) - 1;
-            removeTask = displayedTasks.get(removalIndex);
+            removeTask = findTask(displayedTasks.get(removalIndex));
         } catch (IndexOutOfBoundsException | NumberFormatException e) {
             return "The task you specified could not be found.";
         }
@@ -290,45 +328,43 @@ public class Controller {
         }
     }
 
+    // The other instances of a recurring series get the date as an exception
     private void deleteIndividualTask(Task taskToDelete) {
+        ArrayList<Task> otherInstances = new ArrayList<Task>();
         if (taskToDelete.isRecurring()) {
-            for (Task task : allTasks) {
-                if (task.getId() != null && task.getId().equals(taskToDelete.getId())) {
-                    task.addException(taskToDelete.getDate());
+            for (Task task : taskIndexes.getSeries(taskToDelete.getId())) {
+                if (task.getTaskId() != taskToDelete.getTaskId()) {
+                    otherInstances.add(task);
                 }
             }
         }
-        displayedTasks.remove(taskToDelete);
-        allTasks.remove(taskToDelete);
-        updateStorageWithAllTasks();
+        ArrayList<Task> updatedTasks = Task.withException(otherInstances, taskToDelete.getDate());
+        replaceInAllTasks(updatedTasks);
+        removeFromAllTasks(Collections.singletonList(taskToDelete));
+        storage.updateTasks(updatedTasks);
+        storage.removeTasks(Collections.singletonList(taskToDelete));
     }
 
     private void deleteAllTasks(Task taskToDelete) {
-        String recurringId = taskToDelete.getId();
-        ArrayList<Task> tasksToDelete = new ArrayList<Task>();
-
-        for (Task task : allTasks) {
-            if (task.getId() != null && task.getId().equals(recurringId)) {
-                tasksToDelete.add(task);
-            }
-        }
-        displayedTasks.removeAll(tasksToDelete);
-        allTasks.removeAll(tasksToDelete);
-        updateStorageWithAllTasks();
+        ArrayList<Task> tasksToDelete = new ArrayList<Task>(
+                taskIndexes.getSeries(taskToDelete.getId()));
+        removeFromAllTasks(tasksToDelete);
+        storage.removeTasks(tasksToDelete);
     }
 
     private String completeTask(String input) {
         try {
             int index = Integer.parseInt(input.trim()) - 1;
-            Task task = displayedTasks.get(index);
+            Task task = findTask(displayedTasks.get(index));
             
             if (task.isCompleted()) {
                 return String.format("\"%s\" already completed.", task.getDescription());
             }
             
-            task.markAsCompleted();
+            task = task.withCompleted();
+            replaceInAllTasks(Collections.singletonList(task));
 
-            updateStorageWithAllTasks();
+            storage.updateTasks(Collections.singletonList(task));
             checkPreviousDisplay();
 
             return String.format("\"%s\" completed.", task.getDescription());
@@ -340,10 +376,10 @@ public class Controller {
     private String incompleteTask(String input) {
         try {
             int index = Integer.parseInt(input.trim()) - 1;
-            Task task = displayedTasks.get(index);
-            task.markAsIncomplete();
+            Task task = findTask(displayedTasks.get(index)).withIncomplete();
+            replaceInAllTasks(Collections.singletonList(task));
 
-            updateStorageWithAllTasks();
+            storage.updateTasks(Collections.singletonList(task));
             checkPreviousDisplay();
             
             return String.format("\"%s\" marked as incomplete.", task.getDescription());
@@ -352,18 +388,55 @@ public class Controller {
         }
     }
 
-    // The previous state of the ArrayList and the ObservableList are restored
+    // Puts back the tasks the previous command changed. The position in the
+    // history is kept across restarts, so this works after one as well
     private String undo() {
     	assert previousStates != null;
-        if (previousStates.isEmpty()) {
+        if (!previousStates.hasPreviousState()) {
             return "Already at oldest change, unable to undo.";
         }
-        previousStates.getPreviousState();
-        restorePreviousState(); 
-        updateStorageWithAllTasks(); 
-        checkPreviousDisplay();
+        TaskList previousTasks = previousStates.getPreviousState(allTasks);
+        if (previousTasks == null) {
+            return "Undo history could not be read, unable to undo.";
+        }
+        switchToTasks(previousTasks);
         return String.format("Previous command has been undone: \"%s\"", previousStates.getPreviousCommand());
     }
+
+    // Makes the changes of the last undone command again
+    private String redo() {
+        assert previousStates != null;
+        if (!previousStates.hasNextState()) {
+            return "Already at newest change, unable to redo.";
+        }
+        TaskList nextTasks = previousStates.getNextState(allTasks);
+        if (nextTasks == null) {
+            return "Undo history could not be read, unable to redo.";
+        }
+        switchToTasks(nextTasks);
+        return String.format("Command has been redone: \"%s\"", previousStates.getPreviousCommand());
+    }
+
+    // Only the tasks that differ between the two lists are written to storage
+    private void switchToTasks(TaskList tasks) {
+        ArrayList<Task> addedTasks = new ArrayList<Task>();
+        ArrayList<Task> removedTasks = new ArrayList<Task>();
+        ArrayList<Task> changedTasks = new ArrayList<Task>();
+        tasks.forEachDifference(allTasks, (taskId, task, currentTask) -> {
+            if (task == null) {
+                addedTasks.add(currentTask);
+            } else if (currentTask == null) {
+                removedTasks.add(task);
+            } else {
+                changedTasks.add(task);
+            }
+        });
+        setAllTasks(tasks);
+        storage.removeTasks(addedTasks);
+        storage.addTasks(removedTasks);
+        storage.updateTasks(changedTasks);
+        checkPreviousDisplay();
+    }
     
     // Execute search if the previous display is on search display
 	private void checkPreviousDisplay() {
@@ -372,12 +445,6 @@ public class Controller {
 		}
 	}
 
-	// Assign the allTasks and displayedTasks field to its previous state
-	private void restorePreviousState() {
-		allTasks = previousStates.getAllTasks();
-		displayedTasks = previousStates.getDisplayedTasks();
-	}
-
     private void search(String input) {
         if (input.equals("completed")) {
         	updateDisplayWithCompleted();
@@ -385,18 +452,35 @@ public class Controller {
         	displayedTasks.clear();
 	        parser.parse(input);
 	        ArrayList<LocalDateTime> searchDate = parser.getDates();
-	        for (Task task : allTasks) {
-	            String taskInfo = task.getDescription().toLowerCase();
-	            if (taskInfo.contains(input.toLowerCase())) {
+	        // when every word is a date, descriptions cannot hold the input, as
+	        // the words taken as dates are left out of them. Then the date index
+	        // has all the matches, otherwise every description is looked at
+	        Iterable<Task> candidates = allTasks;
+	        if (searchDate.size() > 0 && parser.getNotParsedWords().trim().isEmpty()) {
+	            candidates = taskIndexes.getTasksOn(searchDate.get(0).toLocalDate());
+	        }
+	        for (Task task : candidates) {
+	            if (matchesSearch(task, input, searchDate)) {
 	                displayedTasks.add(task);
-	            } else if (searchDate.size() > 0
-	                    && searchDate.get(0).toLocalDate().equals(task.getDate())) {
+	            }
+	        }
+	        for (Task task : getArchivedTasks()) {
+	            if (matchesSearch(task, input, searchDate)) {
 	                displayedTasks.add(task);
 	            }
 	        }
         }
     }
 
+    // The description holds the input, or the task is on the searched date
+    private boolean matchesSearch(Task task, String input, ArrayList<LocalDateTime> searchDate) {
+        String taskInfo = task.getDescription().toLowerCase();
+        if (taskInfo.contains(input.toLowerCase())) {
+            return true;
+        }
+        return searchDate.size() > 0 && searchDate.get(0).toLocalDate().equals(task.getDate());
+    }
+
     private String displayTask(String input) {
         displayedTasks.clear();
 
@@ -420,6 +504,7 @@ public class Controller {
     
     private String moveSaveFileDirectory(String input) {
         if (storage.moveSaveFileDirectory(input)) {
+            previousStates.moveTo(storage.getHistoryFile());
             return "Save file has been moved.";
         } else {
             return "Moving save file failed.";
@@ -428,23 +513,201 @@ public class Controller {
     
     private String setSaveFileDirectory(String input) {
         if (storage.setSaveFileDirectory(input)) {
-            allTasks = storage.readFile();
-            return "File save destination has been confirmed.";
+            setAllTasks(TaskList.of(storage.readFile()));
+            archivedTasks = null;
+            previousStates.close();
+            previousStates = storage.createHistory();
+            return "File save destination has been confirmed." + getRecoveryMessage();
         } else {
             return "File save destination failed.";
         }
     }
+
+    // Tells the user about the damaged records the last load left out
+    private String getRecoveryMessage() {
+        int skipped = storage.getSkippedRecords().size();
+        if (skipped == 0) {
+            return "";
+        }
+        String message = String.format(" %d damaged records in the save file could not be read,"
+                                       + " see the log for where they are.", skipped);
+        if (storage.getTasksFromBackup() > 0) {
+            message += String.format(" %d tasks were taken from the backup instead.",
+                                     storage.getTasksFromBackup());
+        }
+        return message;
+    }
     
+    // Adds all tasks in the file as one change, so one undo removes them
+    private String importTasks(String input) {
+        if (input.isEmpty()) {
+            return "Invalid command.";
+        }
+        TaskImporter importer = new TaskImporter();
+        ArrayList<Task> importedTasks;
+        try {
+            importedTasks = importer.importFile(new File(input));
+        } catch (IOException e) {
+            return String.format("Could not read %s", input);
+        }
+        addToAllTasks(importedTasks);
+        storage.addTasks(importedTasks);
+        if (!storage.flush()) {
+            return String.format("%d tasks have been imported, but could not be saved yet.",
+                                 importedTasks.size());
+        }
+        if (importer.getSkippedRecords().isEmpty()) {
+            return String.format("%d tasks have been imported.", importedTasks.size());
+        }
+        return String.format("%d tasks have been imported, %d records could not be read.",
+                             importedTasks.size(), importer.getSkippedRecords().size());
+    }
+
     private String clear() {
-        allTasks = new ArrayList<Task>();
+        setAllTasks(TaskList.empty());
         displayedTasks = FXCollections.observableArrayList();;
-        storage.updateFiles(allTasks);
+        updateStorageWithAllTasks();
         displayController.resetScrollIndex();
         return "All tasks have been deleted!";
     }
 
+    // Applies changes another program made to the save file (FX thread).
+    // Undo only puts back the tasks a command changed, so these stay
+    private void applyExternalChanges(List<JournalEntry> entries) {
+        setAllTasks(applyEntries(allTasks, entries));
+        checkPreviousDisplay();
+        showAppropriateDisplay(false);
+        displayController.setFeedback("Save file was changed outside Fini, tasks have been reloaded.");
+    }
+
+    private TaskList applyEntries(TaskList tasks, List<JournalEntry> entries) {
+        for (JournalEntry entry : entries) {
+            switch (entry.getType()) {
+                case ADD :
+                    if (tasks.get(entry.getTaskId()) == null) {
+                        tasks = tasks.add(Collections.singletonList(entry.getTask()));
+                    }
+                    break;
+
+                case UPDATE :
+                    tasks = tasks.add(Collections.singletonList(entry.getTask()));
+                    break;
+
+                case REMOVE :
+                    Task task = tasks.get(entry.getTaskId());
+                    if (task != null) {
+                        tasks = tasks.remove(Collections.singletonList(task));
+                    }
+                    break;
+            }
+        }
+        return tasks;
+    }
+
+    // Every command has already queued its changes, so they only need to
+    // reach the disk before the engine lets go of its files
     private void exit() {
-        updateStorageWithAllTasks();
+        storage.close();
+        previousStates.close();
+    }
+
+    // ================================================================
+    // Archive methods
+    // ================================================================
+
+    // Moves the archived task that the command refers to back into allTasks
+    // before the command changes it. "all" also brings back the rest of a
+    // recurring series
+    private void restoreArchivedTasks(String input) {
+        boolean isAll = input.toLowerCase().contains("all");
+        Task task;
+        try {
+            String[] inputArray = input.toLowerCase().replace("all", "").trim().split(" ");
+            task = displayedTasks.get(Integer.parseInt(inputArray[0]) - 1);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return;
+        }
+
+        boolean isSeries = isAll && task.isRecurring();
+        if (archivedTasks == null && !isSeries) {
+            return;
+        }
+        ArrayList<Task> tasksToRestore = new ArrayList<Task>();
+        for (Task archivedTask : getArchivedTasks()) {
+            if (archivedTask.getTaskId() == task.getTaskId()
+                    || (isSeries && task.getId().equals(archivedTask.getId()))) {
+                tasksToRestore.add(archivedTask);
+            }
+        }
+        restoreArchivedTasks(tasksToRestore);
+    }
+
+    private void restoreAllArchivedTasks() {
+        restoreArchivedTasks(new ArrayList<Task>(getArchivedTasks()));
+    }
+
+    // Restored tasks are not part of the command, so undo leaves them in
+    // allTasks, as if they had never been archived
+    private void restoreArchivedTasks(ArrayList<Task> tasksToRestore) {
+        if (tasksToRestore.isEmpty()) {
+            return;
+        }
+        storage.restoreFromArchive(tasksToRestore);
+        archivedTasks.removeAll(tasksToRestore);
+        addToAllTasks(tasksToRestore);
+    }
+
+    // ================================================================
+    // Task list methods
+    // ================================================================
+
+    // Each change makes a new TaskList, which shares nearly all of its
+    // nodes with the old one that History may keep
+    private void addToAllTasks(List<Task> tasks) {
+        setAllTasks(allTasks.add(tasks));
+    }
+
+    private void removeFromAllTasks(Collection<Task> tasks) {
+        HashSet<Long> taskIds = new HashSet<Long>();
+        for (Task task : tasks) {
+            taskIds.add(task.getTaskId());
+        }
+        setAllTasks(allTasks.remove(tasks));
+        displayedTasks.removeIf(task -> taskIds.contains(task.getTaskId()));
+    }
+
+    // Puts changed copies of tasks in place of the tasks with the same id.
+    // Archived tasks are replaced in displayedTasks only
+    private void replaceInAllTasks(List<Task> changedTasks) {
+        if (changedTasks.isEmpty()) {
+            return;
+        }
+        HashMap<Long, Task> changedById = new HashMap<Long, Task>();
+        for (Task task : changedTasks) {
+            changedById.put(task.getTaskId(), task);
+        }
+        setAllTasks(allTasks.replace(changedTasks));
+        // only the changed rows are set, as each set updates the display
+        for (int i = 0; i < displayedTasks.size(); i++) {
+            Task changedTask = changedById.get(displayedTasks.get(i).getTaskId());
+            if (changedTask != null) {
+                displayedTasks.set(i, changedTask);
+            }
+        }
+    }
+
+    // Every change of allTasks goes through here. Only the tasks that differ
+    // are looked at, as the lists share the rest
+    private void setAllTasks(TaskList tasks) {
+        taskIndexes.update(allTasks, tasks);
+        allTasks = tasks;
+    }
+
+    // The task in allTasks with the same id as a displayed task. Archived
+    // tasks are not in allTasks, so they are returned as they are
+    private Task findTask(Task task) {
+        Task indexedTask = allTasks.get(task.getTaskId());
+        return indexedTask == null ? task : indexedTask;
     }
 
     // ================================================================
@@ -463,12 +726,12 @@ public class Controller {
     }
     
     private void updateDisplayWithDefault() {
-        displayedTasks.setAll(getIncompleteTasks(allTasks));
+        displayedTasks.setAll(getIncompleteTasks());
         displayController.updateOverviewDisplay(displayedTasks);
     }
 
     private void updateDisplayWithCompleted() {
-        displayedTasks.setAll(getCompletedTasks(allTasks));
+        displayedTasks.setAll(getCompletedTasks());
         displayController.updateSearchDisplay(displayedTasks, "completed");
     }
     
@@ -483,15 +746,14 @@ public class Controller {
     	displayController.showHelpDisplay();
     }
 
-    // Save the current state of allTasks and displayedTasks field before execution of command
+    // Save the current state of allTasks before execution of command
     private void saveCurrentState(String input) {
     	assert allTasks != null;
-        assert displayedTasks != null;
-        previousStates.storeCurrentState(allTasks, displayedTasks);
+        previousStates.storeCurrentState(allTasks);
         previousStates.storeCommand(input);
     }
 
     private void updateStorageWithAllTasks() {
-        storage.updateFiles(allTasks);
+        storage.updateFiles(allTasks.toArrayList());
     }
 }
@@ -219,15 +219,14 @@ public class CreateTask {
         Task task;
         LocalDateTime nextDate = null;
         boolean hasException = false;
+        TaskSeries series = new TaskSeries(recurId, rawInfo,
+                Task.createDescription(nonParsedWords), exceptionDates);
 
         while (!recurDate.get(0).toLocalDate()
                 .isAfter(endDateTime.toLocalDate())) {
             hasException = checkForException(recurDate.get(0));
             if (!hasException) {
-                task = new Task(input, recurDate, parsedWords, nonParsedWords);
-                task.setId(recurId);
-                task.setRawInfo(rawInfo);
-                task.setException(exceptionDates);
+                task = new Task(series, recurDate);
                 tempList.add(task);
             }
             hasException = false;
@@ -0,0 +1,254 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the save file encrypted with AES-GCM.
+ *
+ * The file starts with a HEADER line. Every following line is a block of up
+ * to RECORDS_PER_BLOCK JSON lines, as JsonTaskCodec would write them, sealed
+ * by RecordCipher. Blocks are sealed on their own, so the file is read one
+ * block at a time and no plaintext copy of it is ever made. A block that is
+ * damaged or cut off fails its tag check and is skipped, while the blocks
+ * around it can still be read.
+ *
+ * The header holds a random file id. Each block is sealed with the header and
+ * its block number as associated data, and the last block, which is written
+ * even when it is empty, is marked as such. So blocks that were moved, taken
+ * from another file or dropped from the end do not open where they are now.
+ * Files of version 1 have no file id and were sealed without associated data,
+ * they are still read.
+ */
+public class EncryptedTaskCodec implements TaskCodec {
+    private static final String HEADER_PREFIX = "FINI-AES-GCM ";
+    private static final String VERSION_1_HEADER = HEADER_PREFIX + "1";
+    private static final String VERSION_2_PREFIX = HEADER_PREFIX + "2 ";
+    private static final String LAST_BLOCK = " last";
+    private static final int RECORDS_PER_BLOCK = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char LINE_SEPARATOR = '\n';
+
+    private TaskTypeAdapter taskAdapter;
+    private RecordCipher cipher;
+
+    /**
+     * @param cipher the key to use, or null if there is none, in which case
+     *               encrypted files cannot be read or written
+     */
+    public EncryptedTaskCodec(TaskTypeAdapter taskAdapter, RecordCipher cipher) {
+        this.taskAdapter = taskAdapter;
+        this.cipher = cipher;
+    }
+
+    // Checks for the header line, so it works without the key
+    public static boolean isEncryptedFile(File file) {
+        String header = readHeader(file);
+        return header != null && header.startsWith(HEADER_PREFIX);
+    }
+
+    // Checks whether the file is written in the format that write() uses
+    public static boolean isCurrentVersion(File file) {
+        String header = readHeader(file);
+        return header != null && header.startsWith(VERSION_2_PREFIX);
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    @Override
+    public void write(File file, List<Task> tasks) throws IOException {
+        checkKey(file);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String fileHeader = VERSION_2_PREFIX + cipher.createFileId();
+            writer.write(fileHeader);
+            writer.write(LINE_SEPARATOR);
+
+            StringWriter block = new StringWriter();
+            JsonWriter jsonWriter = new JsonWriter(block);
+            jsonWriter.setLenient(true);
+            int recordsInBlock = 0;
+            int blockNumber = 0;
+            LinkedHashMap<String, SeriesHeader> headers = SeriesHeader.createHeaders(tasks);
+            HashSet<String> writtenSeries = new HashSet<String>();
+            for (Task task : tasks) {
+                SeriesHeader header = task.isRecurring() ? headers.get(task.getId()) : null;
+                if (header != null && writtenSeries.add(task.getId())) {
+                    writeRecord(jsonWriter, block, header, null);
+                    recordsInBlock++;
+                }
+                writeRecord(jsonWriter, block, task, header);
+                recordsInBlock++;
+                if (recordsInBlock >= RECORDS_PER_BLOCK) {
+                    blockNumber++;
+                    writeBlock(writer, block, getAssociatedData(fileHeader, blockNumber, false));
+                    recordsInBlock = 0;
+                }
+            }
+            blockNumber++;
+            writeBlock(writer, block, getAssociatedData(fileHeader, blockNumber, true));
+        }
+    }
+
+    @Override
+    public ArrayList<Task> read(File file) throws IOException {
+        RecoveredTasks recovered = recover(file, null);
+        if (!recovered.isComplete()) {
+            throw new IOException("Damaged record in " + file + ", "
+                                  + recovered.getSkippedRecords().get(0));
+        }
+        return recovered.getTasks();
+    }
+
+    /**
+     * Reads the file block by block, skipping the blocks that cannot be
+     * opened. If the last block turns out not to be the one that was written
+     * last, the file was cut off and the missing tasks are left as a gap.
+     */
+    @Override
+    public RecoveredTasks recover(File file, Long stopAfterTaskId) throws IOException {
+        checkKey(file);
+        ArrayList<Task> records = new ArrayList<Task>();
+        ArrayList<String> skippedRecords = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String header = reader.readLine();
+            boolean isVersion1 = VERSION_1_HEADER.equals(header);
+            if (!isVersion1 && (header == null || !header.startsWith(VERSION_2_PREFIX))) {
+                throw new IOException(file + " is not an encrypted save file");
+            }
+            String line = reader.readLine();
+            int blockNumber = 0;
+            while (line != null) {
+                String nextLine = reader.readLine();
+                blockNumber++;
+                if (line.trim().isEmpty()) {
+                    line = nextLine;
+                    continue;
+                }
+                boolean isCutOff = false;
+                try {
+                    String plaintext;
+                    if (isVersion1) {
+                        plaintext = cipher.open(line);
+                    } else if (nextLine != null) {
+                        plaintext = cipher.open(line, getAssociatedData(header, blockNumber,
+                                                                        false));
+                    } else {
+                        try {
+                            plaintext = cipher.open(line, getAssociatedData(header, blockNumber,
+                                                                            true));
+                        } catch (GeneralSecurityException e) {
+                            // a block from the middle, the ones after it are gone
+                            plaintext = cipher.open(line, getAssociatedData(header, blockNumber,
+                                                                            false));
+                            isCutOff = true;
+                        }
+                    }
+                    if (readBlock(plaintext, records, stopAfterTaskId)) {
+                        break;
+                    }
+                } catch (GeneralSecurityException e) {
+                    records.add(null);
+                    skippedRecords.add("block " + blockNumber + ": cut off, damaged, moved "
+                                       + "or sealed with another key");
+                } catch (IOException | RuntimeException e) {
+                    records.add(null);
+                    skippedRecords.add("block " + blockNumber + ": " + e.getMessage());
+                }
+                if (isCutOff) {
+                    records.add(null);
+                    skippedRecords.add("after block " + blockNumber + ": the file is cut off");
+                }
+                line = nextLine;
+            }
+            // write() leaves at least one block
+            if (blockNumber == 0 && !isVersion1) {
+                records.add(null);
+                skippedRecords.add("block 1: the file is cut off");
+            }
+        }
+        return new RecoveredTasks(records, skippedRecords);
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+    private void checkKey(File file) throws IOException {
+        if (cipher == null) {
+            throw new IOException("No encryption key to open " + file
+                                  + ", set encryptionKeyFile in the settings");
+        }
+    }
+
+    private void writeRecord(JsonWriter jsonWriter, StringWriter block, Task task,
+                             SeriesHeader header) throws IOException {
+        taskAdapter.write(jsonWriter, task, header);
+        jsonWriter.flush();
+        block.write(LINE_SEPARATOR);
+    }
+
+    private void writeBlock(Writer writer, StringWriter block,
+                            String associatedData) throws IOException {
+        writer.write(cipher.seal(block.toString(), associatedData));
+        writer.write(LINE_SEPARATOR);
+        block.getBuffer().setLength(0);
+    }
+
+    private static String getAssociatedData(String header, int blockNumber, boolean isLast) {
+        return header + " " + blockNumber + (isLast ? LAST_BLOCK : "");
+    }
+
+    // null if the file cannot be read
+    private static String readHeader(File file) {
+        if (file.length() < HEADER_PREFIX.length()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Returns true if the task to stop after was read
+    private boolean readBlock(String plaintext, ArrayList<Task> records,
+                              Long stopAfterTaskId) throws IOException {
+        // the last block is empty when the one before it was full
+        if (plaintext.isEmpty()) {
+            return false;
+        }
+        JsonReader jsonReader = new JsonReader(new StringReader(plaintext));
+        jsonReader.setLenient(true);
+        while (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+            Task task = taskAdapter.read(jsonReader);
+            records.add(task);
+            if (task != null && stopAfterTaskId != null && !(task instanceof SeriesHeader)
+                    && task.getTaskId() == stopAfterTaskId) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class moves the save file and the files that belong to it.
+ *
+ * A move is a rename when possible. A rename fails when the destination is on
+ * another file system, e.g. a mounted data volume. Then the file is copied with
+ * FileChannel.transferTo into a temporary file next to the destination,
+ * checked against the original and renamed into place, so the destination
+ * either has the whole file or nothing. The file is never read into the heap.
+ *
+ * Copies of large files report their progress to the log.
+ */
+public class FileMover {
+    private static final Logger logger = Logger.getLogger(FileMover.class.getName());
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+    private static final long PROGRESS_MIN_SIZE = 32 * 1024 * 1024;
+    private static final int PROGRESS_STEP_PERCENT = 10;
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+
+    /**
+     * Moves a file, replacing the destination if it exists.
+     *
+     * @return true if the file is at the destination and gone from the source
+     */
+    public static Boolean move(File source, File destination) {
+        try {
+            Files.move(source.toPath(), destination.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            // most likely another file system, so copy it instead
+        }
+        File tempFile = new File(destination.getPath() + TEMP_FILE_SUFFIX);
+        try {
+            copy(source, tempFile);
+            if (!hasSameContent(source, tempFile)) {
+                logger.log(Level.WARNING, "Copy of " + source + " does not match, move cancelled");
+                Files.deleteIfExists(tempFile.toPath());
+                return false;
+            }
+            Files.move(tempFile.toPath(), destination.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source.toPath());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Moves every file in a directory, e.g. the archive of a save file. The
+     * files are moved one by one, so only one of them is ever being copied.
+     *
+     * @return true if every file was moved
+     */
+    public static Boolean moveDirectory(File source, File destination) {
+        if (!source.isDirectory()) {
+            return true;
+        }
+        if (source.renameTo(destination)) {
+            return true;
+        }
+        destination.mkdirs();
+        File[] files = source.listFiles();
+        if (files == null) {
+            return false;
+        }
+        Boolean isMoved = true;
+        for (File file : files) {
+            isMoved &= move(file, new File(destination, file.getName()));
+        }
+        return isMoved && source.delete();
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+
+    // Copies in steps of TRANSFER_SIZE, which the kernel may do without
+    // passing the bytes through user space
+    private static void copy(File source, File destination) throws IOException {
+        try (FileChannel input = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(destination.toPath(),
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = input.size();
+            long position = 0;
+            int reportedPercent = 0;
+            while (position < size) {
+                long transferred = input.transferTo(position,
+                                                    Math.min(TRANSFER_SIZE, size - position),
+                                                    output);
+                if (transferred <= 0) {
+                    throw new IOException("Could not copy " + source + " past byte " + position);
+                }
+                position += transferred;
+
+                int percent = (int) (position * 100 / size);
+                if (size >= PROGRESS_MIN_SIZE
+                        && percent >= reportedPercent + PROGRESS_STEP_PERCENT) {
+                    reportedPercent = percent;
+                    logger.log(Level.INFO, "Moving " + source + ": " + percent + "%");
+                }
+            }
+            output.force(true);
+        }
+    }
+
+    // Also used by BackupManager to skip backups that did not change
+    static boolean hasSameContent(File first, File second) throws IOException {
+        return first.length() == second.length() && checksum(first) == checksum(second);
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+        }
+        return checksum.getValue();
+    }
+}
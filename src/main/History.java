@@ -1,137 +1,549 @@
 package main;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.EmptyStackException;
-import java.util.Stack;
-import java.util.logging.Level;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 /**
- * This class helps to store all of the previous states of the ArrayList and ObservableList
- * in the controller as a stack. This is to allow the command, "undo" to take place.
- * History class stores for 3 different fields:
- * ArrayList<Task> allTasks, ObservableList<Task> displayedTasks, String feedback
- * 
- * Basically it works like a normal Stack object. The only difference is that it manages 3 Stack objects 
- * altogether
+ * This class keeps the commands that can be undone and redone, in a log
+ * that sits next to the save file and is kept across restarts.
+ *
+ * Every command that changes allTasks in the controller adds one entry with
+ * the command string and the tasks it changed, as they were before and after
+ * it. The position in the log is the number of entries that can be undone.
+ * Undo moves it back one entry and puts the "before" tasks into allTasks,
+ * redo moves it forward and puts the "after" tasks back. A new command drops
+ * the entries after the position, as they can no longer be redone.
+ *
+ * Only the tasks of the entry are changed, so changes made in between, e.g.
+ * by another program or by bringing tasks back from the archive, stay.
+ *
+ * The log file is [int magic][int position] followed by the entries, each as
+ * [int length][gzip bytes] of its JSON, sealed if there is a cipher. Moving
+ * N steps is N seeks. Entries are written by a background thread, and the
+ * newest ones are also kept in memory, at most entriesInMemory of them and
+ * about memoryLimit bytes. Once there are more than maxEntries entries the
+ * oldest half is dropped.
  */
 public class History {
+	private static final Logger logger = Logger.getLogger(History.class.getName());
+	// "FIN2", entries are sealed after gzip. A log with another header is
+	// started again
+	private static final int MAGIC = 0x46494E32;
+	private static final int HEADER_SIZE = 8;
+	private static final int POSITION_OFFSET = 4;
+	private static final int LENGTH_SIZE = 4;
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	// about what a changed task takes in memory
+	private static final long ESTIMATED_BYTES_PER_CHANGE = 512;
 
 	// ================================================================
 	// Fields
 	// ================================================================
-	private Stack<ArrayList<Task>> mainStack;
-	private Stack<ObservableList<Task>> displayedStack;
-	
-	private ArrayList<Task> allTasks;
-	private ObservableList<Task> displayedTasks;
+	private int entryCount;
+	private int position;
+	private int maxEntries;
+	private TaskList pendingState;
+	private String pendingCommand;
+	private String movedCommand;
 
-	private Stack<String> commandHistory;
+	// entries by index, oldest first, for undo and redo without reading
+	private LinkedHashMap<Integer, LogEntry> recentEntries;
+	private long recentBytes;
+	private int entriesInMemory;
+	private long memoryLimit;
+
+	// only used by the log thread after the constructor
+	private File historyFile;
+	private ArrayList<Long> entryOffsets;
+	private boolean isHistoryFileDamaged;
+	private Gson gson;
+	private RecordCipher cipher;
+	private ExecutorService logExecutor;
 
 	// ================================================================
 	// Constructor
 	// ================================================================
-	public History() {
-		mainStack = new Stack<ArrayList<Task>>();
-		displayedStack = new Stack<ObservableList<Task>>();
-		commandHistory = new Stack<String>();
+
+	// Entries are sealed with the cipher, unless it is null, as they hold
+	// the same tasks as the save file
+	public History(File historyFile, int maxEntries, int entriesInMemory, long memoryLimit,
+	               Gson gson, RecordCipher cipher) {
+		this.historyFile = historyFile;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.entriesInMemory = Math.max(1, entriesInMemory);
+		this.memoryLimit = memoryLimit;
+		this.gson = gson;
+		this.cipher = cipher;
+		recentEntries = new LinkedHashMap<Integer, LogEntry>();
+		entryOffsets = new ArrayList<Long>();
+		openHistoryFile();
+		logExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "history-log");
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	// ================================================================
 	// Public methods
 	// ================================================================
-	
-	// Push the arguments into their respective Stacks
-	public void storeCurrentState(ArrayList<Task> allTasks, ObservableList<Task> displayedTasks) {
-		mainStack.push(cloneState(allTasks));
-		displayedStack.push(cloneState(displayedTasks));
-		assert !mainStack.empty();
-		assert !displayedStack.empty();
-	}
-	
-	// Pop the Stacks and store them in thier respective fields
-	public void getPreviousState() {
+
+	// Keep the tasks before the command, until storeResultingState
+	public void storeCurrentState(TaskList allTasks) {
+		pendingState = allTasks;
+	}
+
+	public void storeCommand(String command) {
+		pendingCommand = command;
+	}
+
+	// Adds the entry of the command, after dropping the entries that could
+	// be redone
+	public void storeResultingState(TaskList allTasks) {
+		if (pendingState == null) {
+			return;
+		}
+		LogEntry entry = new LogEntry(pendingCommand, pendingState, allTasks);
+		pendingState = null;
+		pendingCommand = null;
+		int index = position;
+		position++;
+		entryCount = position;
+		removeCachedEntriesFrom(index);
+		cacheEntry(index, entry);
+		int newPosition = position;
+		logExecutor.execute(() -> writeEntry(index, entry, newPosition));
+		if (entryCount > maxEntries) {
+			dropOldestEntries(entryCount - maxEntries / 2);
+		}
+	}
+
+	public boolean hasPreviousState() {
+		return position > 0;
+	}
+
+	public boolean hasNextState() {
+		return position < entryCount;
+	}
+
+	// The tasks before the last command that was not undone, or null if its
+	// entry could not be read
+	public TaskList getPreviousState(TaskList allTasks) {
+		assert hasPreviousState();
+		LogEntry entry = getEntry(position - 1);
+		if (entry == null) {
+			return null;
+		}
+		position--;
+		movePosition(entry);
+		return entry.before.applyTo(allTasks);
+	}
+
+	// The tasks after the first command that was undone, or null if its
+	// entry could not be read
+	public TaskList getNextState(TaskList allTasks) {
+		assert hasNextState();
+		LogEntry entry = getEntry(position);
+		if (entry == null) {
+			return null;
+		}
+		position++;
+		movePosition(entry);
+		return entry.after.applyTo(allTasks);
+	}
+
+	// Get the command string of the entry that was undone or redone last
+	public String getPreviousCommand() {
+		return movedCommand;
+	}
+
+	// Forgets all entries
+	public void clear() {
+		entryCount = 0;
+		position = 0;
+		pendingState = null;
+		pendingCommand = null;
+		recentEntries.clear();
+		recentBytes = 0;
+		logExecutor.execute(this::truncateHistoryFile);
+	}
+
+	// Moves the log along with the save file
+	public Boolean moveTo(File destination) {
+		Boolean isMoved = waitFor(() -> {
+			if (historyFile.exists() && !FileMover.move(historyFile, destination)) {
+				return false;
+			}
+			historyFile = destination;
+			return true;
+		});
+		return isMoved != null && isMoved;
+	}
+
+	// Waits for the entries to be written, e.g. before the program exits
+	public void close() {
+		logExecutor.shutdown();
+		try {
+			logExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// ================================================================
+	// Entry methods
+	// ================================================================
+	private LogEntry getEntry(int index) {
+		LogEntry entry = recentEntries.get(index);
+		if (entry == null) {
+			entry = waitFor(() -> readEntry(index));
+			if (entry == null) {
+				logger.warning("Undo history could not be read from " + historyFile);
+				clear();
+				return null;
+			}
+			cacheEntry(index, entry);
+		}
+		return entry;
+	}
+
+	private void movePosition(LogEntry entry) {
+		movedCommand = entry.command;
+		int newPosition = position;
+		logExecutor.execute(() -> writePosition(newPosition));
+	}
+
+	// Drops the oldest entries from memory once there are too many
+	private void cacheEntry(int index, LogEntry entry) {
+		recentEntries.put(index, entry);
+		recentBytes += entry.getEstimatedBytes();
+		Iterator<LogEntry> iterator = recentEntries.values().iterator();
+		while (recentEntries.size() > 1
+		       && (recentEntries.size() > entriesInMemory || recentBytes > memoryLimit)) {
+			recentBytes -= iterator.next().getEstimatedBytes();
+			iterator.remove();
+		}
+	}
+
+	private void removeCachedEntriesFrom(int index) {
+		Iterator<Integer> iterator = recentEntries.keySet().iterator();
+		while (iterator.hasNext()) {
+			int key = iterator.next();
+			if (key >= index) {
+				recentBytes -= recentEntries.get(key).getEstimatedBytes();
+				iterator.remove();
+			}
+		}
+	}
+
+	// The entries that stay move down by count, also in memory
+	private void dropOldestEntries(int count) {
+		entryCount -= count;
+		position = Math.max(0, position - count);
+		LinkedHashMap<Integer, LogEntry> keptEntries = new LinkedHashMap<Integer, LogEntry>();
+		for (Map.Entry<Integer, LogEntry> cached : recentEntries.entrySet()) {
+			if (cached.getKey() >= count) {
+				keptEntries.put(cached.getKey() - count, cached.getValue());
+			} else {
+				recentBytes -= cached.getValue().getEstimatedBytes();
+			}
+		}
+		recentEntries = keptEntries;
+		int newPosition = position;
+		logExecutor.execute(() -> removeOldestEntries(count, newPosition));
+	}
+
+	private <T> T waitFor(Callable<T> task) {
 		try {
-			allTasks = mainStack.pop();
-			displayedTasks = displayedStack.pop();
-		} catch (EmptyStackException e) {
+			return logExecutor.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
 			e.printStackTrace();
 		}
- 	}
-	
-	// Return the allTasks field.
-	public ArrayList<Task> getAllTasks() {
-		assert allTasks != null;
-		return allTasks;
-	}
-	
-	// Return the number of elements in the allTasks field. Wont be called if empty
-	public int getAllSize() {
-		assert allTasks.size() >= 0;
-		return allTasks.size();
-	}
-	
-	// Return the displayedTasks field.
-	public ObservableList<Task> getDisplayedTasks() {
-		assert displayedTasks != null;
-		return displayedTasks;
-	}
-	
-	// Return the number of elements in the displayedTasks field. Wont be called if empty
-	public int getDisplayedSize() {
-		assert displayedTasks.size() >= 0;
-		return displayedTasks.size();
-	}
-	
-	public boolean isEmpty() {
-		return mainStack.empty();
-	}
-	
-	// Push the feedback string into its Stack
-	public void storeCommand(String feedback) {
-		commandHistory.push(feedback);
-		assert !commandHistory.empty();
-	}
-
-	// Pop the feedback string from its Stack
-	public String getPreviousCommand() {
-		String previousCommand = null;
+		return null;
+	}
+
+	// ================================================================
+	// History file methods (log thread)
+	// ================================================================
+
+	// Finds the entries, and cuts off an entry that was only partly written
+	private void openHistoryFile() {
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+			if (file.length() < HEADER_SIZE || file.readInt() != MAGIC) {
+				writeHeader(file, 0);
+				return;
+			}
+			int storedPosition = file.readInt();
+			long offset = HEADER_SIZE;
+			while (offset + LENGTH_SIZE <= file.length()) {
+				file.seek(offset);
+				int length = file.readInt();
+				if (length < 0 || offset + LENGTH_SIZE + length > file.length()) {
+					break;
+				}
+				entryOffsets.add(offset);
+				offset += LENGTH_SIZE + length;
+			}
+			file.setLength(offset);
+			entryCount = entryOffsets.size();
+			position = Math.max(0, Math.min(storedPosition, entryCount));
+		} catch (IOException e) {
+			e.printStackTrace();
+			isHistoryFileDamaged = true;
+		}
+	}
+
+	private void writeEntry(int index, LogEntry entry, int newPosition) {
+		if (isHistoryFileDamaged) {
+			return;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+			byte[] bytes = compress(entry);
+			long offset = index < entryOffsets.size() ? entryOffsets.get(index) : file.length();
+			entryOffsets.subList(index, entryOffsets.size()).clear();
+			file.setLength(offset);
+			file.seek(offset);
+			file.writeInt(bytes.length);
+			file.write(bytes);
+			entryOffsets.add(offset);
+			file.seek(POSITION_OFFSET);
+			file.writeInt(newPosition);
+		} catch (IOException e) {
+			e.printStackTrace();
+			isHistoryFileDamaged = true;
+		}
+	}
+
+	private void writePosition(int newPosition) {
+		if (isHistoryFileDamaged) {
+			return;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+			file.seek(POSITION_OFFSET);
+			file.writeInt(newPosition);
+		} catch (IOException e) {
+			e.printStackTrace();
+			isHistoryFileDamaged = true;
+		}
+	}
+
+	private LogEntry readEntry(int index) throws IOException {
+		if (isHistoryFileDamaged || index >= entryOffsets.size()) {
+			return null;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "r")) {
+			file.seek(entryOffsets.get(index));
+			byte[] bytes = new byte[file.readInt()];
+			file.readFully(bytes);
+			return decompress(bytes);
+		}
+	}
+
+	// Copies the newer entries into a new file, which replaces the old one
+	private void removeOldestEntries(int count, int newPosition) {
+		if (isHistoryFileDamaged) {
+			return;
+		}
+		File tempFile = new File(historyFile.getPath() + TEMP_FILE_SUFFIX);
+		long start;
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "r");
+		     RandomAccessFile tempLog = new RandomAccessFile(tempFile, "rw")) {
+			start = count < entryOffsets.size() ? entryOffsets.get(count) : file.length();
+			writeHeader(tempLog, newPosition);
+			file.getChannel().transferTo(start, file.length() - start, tempLog.getChannel());
+		} catch (IOException e) {
+			e.printStackTrace();
+			isHistoryFileDamaged = true;
+			return;
+		}
 		try {
-			previousCommand = commandHistory.pop();
-		} catch (EmptyStackException e) {
+			Files.move(tempFile.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
 			e.printStackTrace();
+			isHistoryFileDamaged = true;
+			return;
+		}
+		entryOffsets.subList(0, Math.min(count, entryOffsets.size())).clear();
+		long shift = start - HEADER_SIZE;
+		entryOffsets.replaceAll(offset -> offset - shift);
+	}
+
+	// Starts a new log, which also gets over a damaged one
+	private void truncateHistoryFile() {
+		entryOffsets.clear();
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+			writeHeader(file, 0);
+			isHistoryFileDamaged = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			isHistoryFileDamaged = true;
+		}
+	}
+
+	private static void writeHeader(RandomAccessFile file, int newPosition) throws IOException {
+		file.setLength(0);
+		file.writeInt(MAGIC);
+		file.writeInt(newPosition);
+	}
+
+	// gzip goes first, as sealed bytes do not compress
+	private byte[] compress(LogEntry entry) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(output),
+		                                            StandardCharsets.UTF_8)) {
+			gson.toJson(entry, writer);
+		}
+		return cipher == null ? output.toByteArray() : cipher.seal(output.toByteArray());
+	}
+
+	private LogEntry decompress(byte[] bytes) throws IOException {
+		try {
+			byte[] compressed = cipher == null ? bytes : cipher.open(bytes);
+			try (Reader reader = new InputStreamReader(new GZIPInputStream(
+			        new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8)) {
+				return gson.fromJson(reader, LogEntry.class);
+			}
+		} catch (GeneralSecurityException | JsonParseException e) {
+			throw new IOException("damaged undo entry", e);
 		}
-		return previousCommand;
 	}
 
 	// ================================================================
-	// Private methods --> The two methods below are to help developers to 
-	//                      create a deep copy of its arguments
+	// Entries
 	// ================================================================
-	private ArrayList<Task> cloneState(ArrayList<Task> input) {
-        ArrayList<Task> output = new ArrayList<Task>();
-        try {
-            for (Task task : input) {
-                output.add(task.clone());
-            }
-        } catch (CloneNotSupportedException e) {
-            e.printStackTrace();
-        }
-        return output;
-    }
-    
-    private ObservableList<Task> cloneState(ObservableList<Task> input) {
-        ArrayList<Task> output = new ArrayList<Task>();
-        try {
-            for (Task task : input) {
-                output.add(task.clone());
-            }
-        } catch (CloneNotSupportedException e) {
-            e.printStackTrace();
-        }
-        return FXCollections.observableArrayList(output);
-    }
- }
+
+	// One command, as the tasks it changed before and after it
+	private static class LogEntry {
+		String command;
+		Changes before = new Changes();
+		Changes after = new Changes();
+
+		// for Gson
+		LogEntry() {
+		}
+
+		LogEntry(String command, TaskList beforeTasks, TaskList afterTasks) {
+			this.command = command;
+			beforeTasks.forEachDifference(afterTasks, (taskId, beforeTask, afterTask) -> {
+				before.add(taskId, beforeTask, beforeTasks);
+				after.add(taskId, afterTask, afterTasks);
+			});
+		}
+
+		long getEstimatedBytes() {
+			long commandBytes = command == null ? 0 : 2 * command.length();
+			return (before.size() + after.size()) * ESTIMATED_BYTES_PER_CHANGE + commandBytes;
+		}
+	}
+
+	/**
+	 * The tasks of one side of an entry. Tasks that are put back remember the
+	 * task before them, so they go back to the same place.
+	 */
+	private static class Changes {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		ArrayList<Long> previousTaskIds = new ArrayList<Long>(); // null if first
+		ArrayList<Long> removedTaskIds = new ArrayList<Long>();
+
+		void add(long taskId, Task task, TaskList allTasks) {
+			if (task == null) {
+				removedTaskIds.add(taskId);
+			} else {
+				tasks.add(task);
+				previousTaskIds.add(allTasks.getPreviousTaskId(taskId));
+			}
+		}
+
+		int size() {
+			return tasks.size() + removedTaskIds.size();
+		}
+
+		TaskList applyTo(TaskList allTasks) {
+			ArrayList<Task> removedTasks = new ArrayList<Task>();
+			for (long taskId : removedTaskIds) {
+				Task task = allTasks.get(taskId);
+				if (task != null) {
+					removedTasks.add(task);
+				}
+			}
+			ArrayList<Task> knownTasks = new ArrayList<Task>();
+			HashMap<Long, ArrayList<Task>> tasksAfter = new HashMap<Long, ArrayList<Task>>();
+			HashSet<Long> returningTaskIds = new HashSet<Long>();
+			for (int i = 0; i < tasks.size(); i++) {
+				Task task = tasks.get(i);
+				if (allTasks.get(task.getTaskId()) != null) {
+					knownTasks.add(task);
+				} else {
+					tasksAfter.computeIfAbsent(previousTaskIds.get(i), id -> new ArrayList<Task>())
+					          .add(task);
+					returningTaskIds.add(task.getTaskId());
+				}
+			}
+			TaskList result = allTasks.remove(removedTasks).replace(knownTasks);
+			// tasks go back after the task before them, which may be one that
+			// goes back itself. If the task before them is gone, e.g. removed by
+			// another program, insertAfter puts them last
+			for (Long taskId : new ArrayList<Long>(tasksAfter.keySet())) {
+				if (taskId == null || !returningTaskIds.contains(taskId)) {
+					result = insertTasksAfter(taskId, tasksAfter, result);
+				}
+			}
+			return result;
+		}
+
+		// Without recursion, as clear removes every task in one chain
+		private static TaskList insertTasksAfter(Long taskId, HashMap<Long, ArrayList<Task>> tasksAfter,
+		                                         TaskList allTasks) {
+			ArrayDeque<Task> pending = new ArrayDeque<Task>();
+			pushAll(tasksAfter.remove(taskId), pending);
+			Long previousTaskId = taskId;
+			while (!pending.isEmpty()) {
+				Task task = pending.pop();
+				allTasks = allTasks.insertAfter(previousTaskId, task);
+				previousTaskId = task.getTaskId();
+				pushAll(tasksAfter.remove(task.getTaskId()), pending);
+			}
+			return allTasks;
+		}
+
+		private static void pushAll(ArrayList<Task> tasks, ArrayDeque<Task> pending) {
+			if (tasks == null) {
+				return;
+			}
+			for (int i = tasks.size() - 1; i >= 0; i--) {
+				pending.push(tasks.get(i));
+			}
+		}
+	}
+}
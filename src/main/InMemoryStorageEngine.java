@@ -0,0 +1,55 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the tasks in memory only, so nothing is written to disk. Meant for
+ * tests and benchmarks.
+ *
+ * Tasks do not change once built, so they are kept as they are given.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+    private LinkedHashMap<Long, Task> tasksById = new LinkedHashMap<Long, Task>();
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    @Override
+    public ArrayList<Task> scan() {
+        return new ArrayList<Task>(tasksById.values());
+    }
+
+    @Override
+    public Task get(long taskId) {
+        return tasksById.get(taskId);
+    }
+
+    @Override
+    public Boolean commit(List<JournalEntry> entries) {
+        for (JournalEntry entry : entries) {
+            Journal.applyEntry(tasksById, entry);
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean replaceAll(ArrayList<Task> tasks) {
+        tasksById.clear();
+        for (Task task : tasks) {
+            tasksById.put(task.getTaskId(), task);
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean moveTo(String saveFileName) {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        tasksById.clear();
+    }
+}
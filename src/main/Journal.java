@@ -0,0 +1,431 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+
+/**
+ * This class keeps the append-only journal that sits next to the save file.
+ *
+ * Instead of rewriting the whole save file on every command, Storage appends
+ * one small JournalEntry per changed task. On start up the save file is read
+ * as a snapshot and the journal is replayed on top of it. Whenever a full
+ * snapshot is written the records it holds are dropped. When the journal
+ * grows too large it is rotated away and compacted into a new snapshot in
+ * the background.
+ *
+ * Replaying is keyed by task id, so replaying the same record twice gives the
+ * same result. A damaged record, e.g. the last one of a write that was cut
+ * off by a crash, is skipped and the records after it are still replayed.
+ * Before the next append such a record is ended with a newline, so the new
+ * records start on a line of their own.
+ *
+ * With a RecordCipher every record is sealed on its own, so appends stay as
+ * small as before. The journal then starts with a header line holding a
+ * random file id, and each record is sealed with the header and the byte
+ * offset it starts at as associated data. A record that was moved, repeated
+ * or taken from another journal does not open and is skipped like a damaged
+ * one. Plain records, and records sealed without a header, are from before
+ * encryption was turned on. They are only replayed while Storage migrates
+ * them into an encrypted snapshot, see setAcceptsLegacyRecords(boolean).
+ */
+public class Journal {
+    private static final Logger logger = Logger.getLogger(Journal.class.getName());
+    private static final String JSON_OBJECT_START = "{";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String HEADER_PREFIX = "FINI-AES-GCM-JOURNAL 1 ";
+    private static final char LINE_SEPARATOR = '\n';
+
+    private File journalFile;
+    private Gson gson;
+    private RecordCipher cipher;
+    private int recordCount;
+    private long readEnd;
+    private ArrayList<String> skippedRecords = new ArrayList<String>();
+    private boolean acceptsLegacyRecords;
+
+    public Journal(File journalFile, Gson gson) {
+        this(journalFile, gson, null);
+    }
+
+    // Records are sealed with the cipher, unless it is null
+    public Journal(File journalFile, Gson gson, RecordCipher cipher) {
+        this.journalFile = journalFile;
+        this.gson = gson;
+        this.cipher = cipher;
+        this.recordCount = 0;
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    public File getFile() {
+        return journalFile;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    // The damaged records that the last replay or readFrom skipped
+    public ArrayList<String> getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    /**
+     * Sets whether records from before encryption was turned on are read.
+     * Once they are in an encrypted snapshot, such records can only have
+     * been put there by someone else, so they are skipped.
+     */
+    public void setAcceptsLegacyRecords(boolean acceptsLegacyRecords) {
+        this.acceptsLegacyRecords = acceptsLegacyRecords;
+    }
+
+    // Appends the records with a single open of the journal
+    public Boolean append(List<JournalEntry> entries) {
+        if (entries.isEmpty()) {
+            return true;
+        }
+        try {
+            String header = null;
+            if (cipher != null) {
+                header = readHeader();
+                // records from before encryption are sealed under a header first
+                if (header == null && journalFile.length() > 0) {
+                    if (!rewriteFrom(0)) {
+                        return false;
+                    }
+                    header = readHeader();
+                }
+            }
+            long offset = journalFile.length();
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(journalFile, true),
+                                           StandardCharsets.UTF_8)))) {
+                if (cipher != null && header == null) {
+                    header = HEADER_PREFIX + cipher.createFileId();
+                    writer.print(header);
+                    writer.print(LINE_SEPARATOR);
+                    offset += header.length() + 1;
+                } else if (!endsWithNewline()) {
+                    // a record cut off by a crash, which replay skips
+                    writer.print(LINE_SEPARATOR);
+                    offset++;
+                }
+                for (JournalEntry entry : entries) {
+                    String text = gson.toJson(entry);
+                    if (cipher != null) {
+                        // sealed records are Base64, one byte per char
+                        text = cipher.seal(text, getAssociatedData(header, offset));
+                        offset += text.length() + 1;
+                    }
+                    writer.print(text);
+                    writer.print(LINE_SEPARATOR);
+                }
+                recordCount += entries.size();
+                return !writer.checkError();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Applies every record in the journal to the given tasks, which are keyed
+     * by task id. Damaged records are skipped with a warning.
+     *
+     * @param tasks snapshot of the tasks, in display order
+     */
+    public void replay(LinkedHashMap<Long, Task> tasks) {
+        recordCount = 0;
+        skippedRecords = new ArrayList<String>();
+        if (!journalFile.exists()) {
+            return;
+        }
+        try {
+            readRecords(0, true, entry -> {
+                applyEntry(tasks, entry);
+                recordCount++;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the records that start at or after the offset, e.g. the ones
+     * another instance appended. Damaged records are skipped with a warning.
+     * A last record without a newline is not complete yet, so the read ends
+     * before it, and getReadEnd() tells where it starts.
+     */
+    public ArrayList<JournalEntry> readFrom(long offset) {
+        ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+        readEnd = offset;
+        skippedRecords = new ArrayList<String>();
+        if (!journalFile.exists()) {
+            return entries;
+        }
+        try {
+            readEnd = readRecords(offset, false, entries::add);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return entries;
+    }
+
+    // Where the last readFrom stopped
+    public long getReadEnd() {
+        return readEnd;
+    }
+
+    /**
+     * Drops the records before the offset once they are part of a snapshot.
+     * Records after it were appended by another instance and not read yet,
+     * so they stay to be replayed on top of the snapshot.
+     */
+    public Boolean dropRecordsBefore(long offset) {
+        if (!journalFile.exists() || offset >= journalFile.length()) {
+            return clear();
+        }
+        if (cipher != null) {
+            // the kept records move, so they are sealed again for their place
+            try {
+                return rewriteFrom(offset);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        File tempFile = new File(journalFile.getPath() + TEMP_FILE_SUFFIX);
+        try (FileChannel input = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = offset;
+            while (position < input.size()) {
+                position += input.transferTo(position, input.size() - position, output);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+            return false;
+        }
+        try {
+            Files.move(tempFile.toPath(), journalFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+            return false;
+        }
+        recordCount = 0;
+        return true;
+    }
+
+    // Empties the journal once its records are part of a snapshot
+    public Boolean clear() {
+        try {
+            new FileOutputStream(journalFile).close();
+            recordCount = 0;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Hands the current records over to compaction and starts a new journal
+    public Boolean rotateTo(File pendingFile) {
+        if (journalFile.exists() && !journalFile.renameTo(pendingFile)) {
+            return false;
+        }
+        recordCount = 0;
+        return true;
+    }
+
+    // Moves the journal along with the save file, also to another file system
+    public Boolean moveTo(File destination) {
+        if (journalFile.exists() && !FileMover.move(journalFile, destination)) {
+            return false;
+        }
+        journalFile = destination;
+        return true;
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+
+    /**
+     * Passes the records from the offset on to the consumer, skipping the
+     * header and damaged records.
+     *
+     * @param includesIncomplete whether a last record without a newline is
+     *                           read too
+     * @return the offset after the last complete record
+     */
+    private long readRecords(long offset, boolean includesIncomplete,
+                             Consumer<JournalEntry> consumer) throws IOException {
+        String header = readHeader();
+        long position = offset;
+        try (InputStream input = new BufferedInputStream(new FileInputStream(journalFile))) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long count = input.skip(offset - skipped);
+                if (count <= 0) {
+                    return offset;
+                }
+                skipped += count;
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int next;
+            while ((next = input.read()) != -1) {
+                if (next != LINE_SEPARATOR) {
+                    line.write(next);
+                    continue;
+                }
+                readRecord(line, header, position, consumer);
+                position += line.size() + 1;
+                line.reset();
+            }
+            if (includesIncomplete && line.size() > 0) {
+                readRecord(line, header, position, consumer);
+            }
+        }
+        return position;
+    }
+
+    private void readRecord(ByteArrayOutputStream line, String header, long position,
+                            Consumer<JournalEntry> consumer) {
+        if (header != null && position == 0) {
+            return;
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+        JournalEntry entry = parseOrSkip(text, header, position);
+        if (entry != null) {
+            consumer.accept(entry);
+        }
+    }
+
+    // null if the record is damaged, which is logged
+    private JournalEntry parseOrSkip(String text, String header, long position) {
+        if (text.isEmpty()) {
+            return null;
+        }
+        try {
+            JournalEntry entry = parse(text, header, position);
+            if (entry != null) {
+                return entry;
+            }
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // reported below
+        }
+        logger.log(Level.WARNING, "Skipped damaged record at byte " + position + " of "
+                                  + journalFile);
+        skippedRecords.add(journalFile.getName() + ", byte " + position);
+        return null;
+    }
+
+    // null if the record was cut off before its fields
+    private JournalEntry parse(String text, String header,
+                               long position) throws GeneralSecurityException {
+        if (cipher != null && header != null) {
+            text = cipher.open(text, getAssociatedData(header, position));
+        } else if (cipher != null && !acceptsLegacyRecords) {
+            throw new GeneralSecurityException("record from before encryption");
+        } else if (cipher != null && !text.startsWith(JSON_OBJECT_START)) {
+            text = cipher.open(text);
+        }
+        JournalEntry entry = gson.fromJson(text, JournalEntry.class);
+        if (entry == null || entry.getType() == null) {
+            return null;
+        }
+        return entry;
+    }
+
+    private static String getAssociatedData(String header, long position) {
+        return header + " " + position;
+    }
+
+    // The header line of an encrypted journal, null if there is none
+    private String readHeader() throws IOException {
+        if (journalFile.length() < HEADER_PREFIX.length()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            return line != null && line.startsWith(HEADER_PREFIX) ? line : null;
+        }
+    }
+
+    // Seals the readable records from the offset on under a new header, in
+    // place of the whole journal
+    private boolean rewriteFrom(long offset) throws IOException {
+        ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+        readRecords(offset, true, entries::add);
+        File tempFile = new File(journalFile.getPath() + TEMP_FILE_SUFFIX);
+        Journal rewritten = new Journal(tempFile, gson, cipher);
+        if (!rewritten.clear() || !rewritten.append(entries)) {
+            tempFile.delete();
+            return false;
+        }
+        try {
+            Files.move(tempFile.toPath(), journalFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        recordCount = entries.size();
+        return true;
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        if (journalFile.length() == 0) {
+            return true;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "r")) {
+            file.seek(file.length() - 1);
+            return file.read() == LINE_SEPARATOR;
+        }
+    }
+
+    // Also used by Storage to keep track of what is in the save file
+    static void applyEntry(LinkedHashMap<Long, Task> tasks, JournalEntry entry) {
+        switch (entry.getType()) {
+            case ADD :
+            case UPDATE :
+                tasks.put(entry.getTaskId(), entry.getTask());
+                break;
+            case REMOVE :
+                tasks.remove(entry.getTaskId());
+                break;
+        }
+    }
+}
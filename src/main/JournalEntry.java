@@ -0,0 +1,46 @@
+package main;
+
+/**
+ * A single record in the journal. Each record describes one change to the
+ * list of tasks, identified by the task id.
+ *
+ * ADD and UPDATE carry the full task, REMOVE only carries the id.
+ */
+public class JournalEntry {
+    public static enum Type {
+        ADD, REMOVE, UPDATE
+    };
+
+    private Type type;
+    private long taskId;
+    private Task task;
+
+    public JournalEntry(Type type, Task task) {
+        this.type = type;
+        this.taskId = task.getTaskId();
+        if (type != Type.REMOVE) {
+            this.task = task;
+        }
+    }
+
+    // A REMOVE record for a task that is only known by its id
+    public JournalEntry(long taskId) {
+        this.type = Type.REMOVE;
+        this.taskId = taskId;
+    }
+
+    // ================================================================
+    // Public getters
+    // ================================================================
+    public Type getType() {
+        return type;
+    }
+
+    public long getTaskId() {
+        return taskId;
+    }
+
+    public Task getTask() {
+        return task;
+    }
+}
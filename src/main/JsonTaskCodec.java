@@ -0,0 +1,413 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * This class reads and writes task files, one JSON object per line.
+ *
+ * Tasks are encoded straight into the file channel with a JsonWriter and
+ * decoded straight from it with a JsonReader, so no String is built for
+ * each line. Large files are read in parallel chunks, see read(File).
+ *
+ * The fields shared by a recurring series are written once, in a SeriesHeader
+ * line before the first instance of the series.
+ *
+ * With checksums turned on, every line ends with " #" and the CRC-32 of its
+ * JSON in hex. JsonReader skips that as a comment, so older versions can
+ * still read the file.
+ */
+public class JsonTaskCodec implements TaskCodec {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char LINE_SEPARATOR = '\n';
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNKS_PER_CORE = 4;
+    private static final int SCAN_BUFFER_SIZE = 4096;
+    private static final String CHECKSUM_FORMAT = " #%08x";
+    private static final int CHECKSUM_LENGTH = 10;
+    private static final int NO_CHECKSUM_MATCH = -1;
+
+    private TaskTypeAdapter taskAdapter;
+    private boolean hasChecksums;
+
+    // The records of one chunk of the file, null for a damaged record
+    private static class Chunk {
+        private ArrayList<Task> records = new ArrayList<Task>();
+        private ArrayList<String> skippedRecords = new ArrayList<String>();
+    }
+
+    public JsonTaskCodec(TaskTypeAdapter taskAdapter, boolean hasChecksums) {
+        this.taskAdapter = taskAdapter;
+        this.hasChecksums = hasChecksums;
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    @Override
+    public void write(File file, List<Task> tasks) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel,
+                     StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE)) {
+            // with checksums, each line is built first so it can be checksummed
+            StringWriter line = hasChecksums ? new StringWriter() : null;
+            JsonWriter jsonWriter = new JsonWriter(hasChecksums ? line : writer);
+            jsonWriter.setLenient(true);
+            LinkedHashMap<String, SeriesHeader> headers = SeriesHeader.createHeaders(tasks);
+            HashSet<String> writtenSeries = new HashSet<String>();
+            for (Task task : tasks) {
+                SeriesHeader header = task.isRecurring() ? headers.get(task.getId()) : null;
+                if (header != null && writtenSeries.add(task.getId())) {
+                    writeLine(writer, jsonWriter, line, header, null);
+                }
+                writeLine(writer, jsonWriter, line, task, header);
+            }
+            jsonWriter.flush();
+        }
+    }
+
+    /**
+     * Reads every task in the file. Large files are memory-mapped, split
+     * into chunks at line boundaries and decoded in parallel.
+     *
+     * @throws IOException if the file cannot be read or has a damaged record
+     */
+    @Override
+    public ArrayList<Task> read(File file) throws IOException {
+        RecoveredTasks recovered = recover(file, null);
+        if (!recovered.isComplete()) {
+            throw new IOException("Damaged record in " + file + ", "
+                                  + recovered.getSkippedRecords().get(0));
+        }
+        return recovered.getTasks();
+    }
+
+    /**
+     * Reads every intact line in the file. A chunk is first decoded as a
+     * whole; only a chunk that fails is decoded again line by line, so the
+     * extra work is limited to the damaged chunks.
+     */
+    @Override
+    public RecoveredTasks recover(File file, Long stopAfterTaskId) throws IOException {
+        List<Chunk> chunks;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Long> boundaries = findChunkBoundaries(channel);
+            if (stopAfterTaskId != null) {
+                chunks = readUntil(channel, boundaries, stopAfterTaskId);
+            } else if (boundaries.size() <= 2) {
+                chunks = Collections.singletonList(readChunk(channel, 0, channel.size()));
+            } else {
+                chunks = readInParallel(channel, boundaries);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        ArrayList<Task> records = new ArrayList<Task>();
+        ArrayList<String> skippedRecords = new ArrayList<String>();
+        for (Chunk chunk : chunks) {
+            records.addAll(chunk.records);
+            skippedRecords.addAll(chunk.skippedRecords);
+        }
+        return new RecoveredTasks(records, skippedRecords);
+    }
+
+    /**
+     * Reads the lines that were added to the file after the given offset,
+     * e.g. by a script that appends tasks.
+     *
+     * @param offset the old size of the file, just after a newline
+     */
+    public RecoveredTasks recoverFrom(File file, long offset) throws IOException {
+        Chunk chunk = new Chunk();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readLines(loadChunk(channel, offset, channel.size()), offset, null, chunk);
+        }
+        return new RecoveredTasks(chunk.records, chunk.skippedRecords);
+    }
+
+    // ================================================================
+    // Writing
+    // ================================================================
+    private void writeLine(Writer writer, JsonWriter jsonWriter, StringWriter line,
+                           Task task, SeriesHeader header) throws IOException {
+        if (line == null) {
+            taskAdapter.write(jsonWriter, task, header);
+            writer.write(LINE_SEPARATOR);
+            return;
+        }
+        line.getBuffer().setLength(0);
+        taskAdapter.write(jsonWriter, task, header);
+        jsonWriter.flush();
+        String json = line.toString();
+        CRC32 checksum = new CRC32();
+        checksum.update(json.getBytes(StandardCharsets.UTF_8));
+        writer.write(json);
+        writer.write(String.format(CHECKSUM_FORMAT, checksum.getValue()));
+        writer.write(LINE_SEPARATOR);
+    }
+
+    // ================================================================
+    // Chunked reading
+    // ================================================================
+
+    /**
+     * Splits the file into about MIN_CHUNK_SIZE pieces, a few per core.
+     * Every boundary except the first and the last is just after a newline.
+     *
+     * @return offsets of the chunk boundaries, starting at 0 and ending at
+     *         the file size
+     */
+    private List<Long> findChunkBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int maxChunks = Runtime.getRuntime().availableProcessors() * CHUNKS_PER_CORE;
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, size / maxChunks + 1);
+
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        long position = chunkSize;
+        while (position < size) {
+            long boundary = findNextLineStart(channel, position);
+            if (boundary >= size) {
+                break;
+            }
+            boundaries.add(boundary);
+            position = boundary + chunkSize;
+        }
+        boundaries.add(size);
+        return boundaries;
+    }
+
+    private long findNextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (channel.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position++;
+                if (buffer.get() == LINE_SEPARATOR) {
+                    return position;
+                }
+            }
+            buffer.clear();
+        }
+        return channel.size();
+    }
+
+    // Decodes the chunks on the fork-join pool and keeps them in file order
+    private List<Chunk> readInParallel(FileChannel channel, List<Long> boundaries) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (int i = 0; i < boundaries.size() - 1; i++) {
+            ranges.add(new long[] { boundaries.get(i), boundaries.get(i + 1) });
+        }
+        return ranges.parallelStream()
+                .map(range -> readChunk(channel, range[0], range[1]))
+                .collect(Collectors.toList());
+    }
+
+    // Reads the chunks in order, line by line, up to the given task
+    private List<Chunk> readUntil(FileChannel channel, List<Long> boundaries,
+                                  long stopAfterTaskId) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int i = 0; i < boundaries.size() - 1; i++) {
+            Chunk chunk = new Chunk();
+            chunks.add(chunk);
+            ByteBuffer bytes = loadChunk(channel, boundaries.get(i), boundaries.get(i + 1));
+            if (readLines(bytes, boundaries.get(i), stopAfterTaskId, chunk)) {
+                break;
+            }
+        }
+        return chunks;
+    }
+
+    private Chunk readChunk(FileChannel channel, long start, long end) {
+        try {
+            ByteBuffer bytes = loadChunk(channel, start, end);
+            if (hasMatchingChecksums(bytes)) {
+                try {
+                    CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(bytes.duplicate());
+                    Chunk chunk = new Chunk();
+                    chunk.records = readTasks(new CharArrayReader(chars.array(),
+                            chars.arrayOffset(), chars.remaining()));
+                    return chunk;
+                } catch (IOException | RuntimeException e) {
+                    // damaged, so decode the chunk again line by line
+                }
+            }
+            Chunk chunk = new Chunk();
+            readLines(bytes, start, null, chunk);
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Large chunks are memory-mapped, small ones are read into the heap
+    private ByteBuffer loadChunk(FileChannel channel, long start, long end) throws IOException {
+        if (end - start >= MIN_CHUNK_SIZE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) > 0) {
+            // read until the chunk is full
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    // Returns tasks and series headers in file order
+    private ArrayList<Task> readTasks(Reader reader) throws IOException {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+        while (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+            tasks.add(taskAdapter.read(jsonReader));
+        }
+        return tasks;
+    }
+
+    // ================================================================
+    // Line by line reading
+    // ================================================================
+
+    /**
+     * Decodes each line on its own, adding null for every damaged line.
+     *
+     * @param offset position of the chunk in the file, for the report
+     * @return true if the task to stop after was read
+     */
+    private boolean readLines(ByteBuffer bytes, long offset, Long stopAfterTaskId,
+                              Chunk chunk) {
+        int lineStart = 0;
+        while (lineStart < bytes.limit()) {
+            int lineEnd = findLineEnd(bytes, lineStart);
+            Task task = readLine(bytes, lineStart, lineEnd, offset, chunk);
+            if (task != null && stopAfterTaskId != null && !(task instanceof SeriesHeader)
+                    && task.getTaskId() == stopAfterTaskId) {
+                return true;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return false;
+    }
+
+    private Task readLine(ByteBuffer bytes, int start, int end, long offset, Chunk chunk) {
+        while (start < end && isWhitespace(bytes.get(start))) {
+            start++;
+        }
+        if (start == end) {
+            return null;
+        }
+        int jsonEnd = findJsonEnd(bytes, start, end);
+        if (jsonEnd == NO_CHECKSUM_MATCH) {
+            return skipLine(chunk, offset + start, "cut off or checksum does not match");
+        }
+        try {
+            ByteBuffer json = bytes.duplicate();
+            json.limit(jsonEnd).position(start);
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(json);
+            JsonReader jsonReader = new JsonReader(new CharArrayReader(chars.array(),
+                    chars.arrayOffset(), chars.remaining()));
+            jsonReader.setLenient(true);
+            Task task = taskAdapter.read(jsonReader);
+            if (task == null || jsonReader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("not a single task");
+            }
+            chunk.records.add(task);
+            return task;
+        } catch (IOException | RuntimeException e) {
+            return skipLine(chunk, offset + start, e.getMessage());
+        }
+    }
+
+    private Task skipLine(Chunk chunk, long position, String reason) {
+        chunk.records.add(null);
+        chunk.skippedRecords.add("line at byte " + position + ": " + reason);
+        return null;
+    }
+
+    // ================================================================
+    // Checksums
+    // ================================================================
+
+    // Checks every line of the chunk that has a checksum
+    private boolean hasMatchingChecksums(ByteBuffer bytes) {
+        int lineStart = 0;
+        while (lineStart < bytes.limit()) {
+            int lineEnd = findLineEnd(bytes, lineStart);
+            if (findJsonEnd(bytes, lineStart, lineEnd) == NO_CHECKSUM_MATCH) {
+                return false;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Finds where the JSON in a line ends, before its checksum if it has one.
+     *
+     * @return the end of the JSON, or NO_CHECKSUM_MATCH if the line has a
+     *         checksum that is cut off or not the one of the JSON
+     */
+    private int findJsonEnd(ByteBuffer bytes, int start, int end) {
+        while (end > start && isWhitespace(bytes.get(end - 1))) {
+            end--;
+        }
+        if (end == start || bytes.get(end - 1) == '}') {
+            return end;
+        }
+        int jsonEnd = end - CHECKSUM_LENGTH;
+        if (jsonEnd < start || bytes.get(jsonEnd) != ' ' || bytes.get(jsonEnd + 1) != '#') {
+            return NO_CHECKSUM_MATCH;
+        }
+        long expected = 0;
+        for (int i = jsonEnd + 2; i < end; i++) {
+            int digit = Character.digit(bytes.get(i), 16);
+            if (digit < 0) {
+                return NO_CHECKSUM_MATCH;
+            }
+            expected = expected * 16 + digit;
+        }
+        ByteBuffer json = bytes.duplicate();
+        json.limit(jsonEnd).position(start);
+        CRC32 checksum = new CRC32();
+        checksum.update(json);
+        return checksum.getValue() == expected ? jsonEnd : NO_CHECKSUM_MATCH;
+    }
+
+    private int findLineEnd(ByteBuffer bytes, int position) {
+        while (position < bytes.limit() && bytes.get(position) != LINE_SEPARATOR) {
+            position++;
+        }
+        return position;
+    }
+
+    private boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t' || value == '\r' || value == LINE_SEPARATOR;
+    }
+}
@@ -0,0 +1,71 @@
+package main;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a LocalDate as an ISO string such as "2015-11-03".
+ *
+ * Save files written before this adapter existed hold dates as objects,
+ * {"year":2015,"month":11,"day":3}, and can still be read.
+ */
+public class LocalDateTypeAdapter extends TypeAdapter<LocalDate> {
+
+    @Override
+    public void write(JsonWriter writer, LocalDate date) throws IOException {
+        if (date == null) {
+            writer.nullValue();
+        } else {
+            writer.value(date.toString());
+        }
+    }
+
+    @Override
+    public LocalDate read(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        try {
+            if (token == JsonToken.BEGIN_OBJECT) {
+                return readOldFormat(reader);
+            }
+            return LocalDate.parse(reader.nextString());
+        } catch (DateTimeException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private LocalDate readOldFormat(JsonReader reader) throws IOException {
+        int year = 0;
+        int month = 1;
+        int day = 1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "year" :
+                    year = reader.nextInt();
+                    break;
+                case "month" :
+                    month = reader.nextInt();
+                    break;
+                case "day" :
+                    day = reader.nextInt();
+                    break;
+                default :
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return LocalDate.of(year, month, day);
+    }
+}
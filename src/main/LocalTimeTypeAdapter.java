@@ -0,0 +1,75 @@
+package main;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalTime;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a LocalTime as an ISO string such as "14:00".
+ *
+ * Save files written before this adapter existed hold times as objects,
+ * {"hour":14,"minute":0,"second":0,"nano":0}, and can still be read.
+ */
+public class LocalTimeTypeAdapter extends TypeAdapter<LocalTime> {
+
+    @Override
+    public void write(JsonWriter writer, LocalTime time) throws IOException {
+        if (time == null) {
+            writer.nullValue();
+        } else {
+            writer.value(time.toString());
+        }
+    }
+
+    @Override
+    public LocalTime read(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        try {
+            if (token == JsonToken.BEGIN_OBJECT) {
+                return readOldFormat(reader);
+            }
+            return LocalTime.parse(reader.nextString());
+        } catch (DateTimeException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private LocalTime readOldFormat(JsonReader reader) throws IOException {
+        int hour = 0;
+        int minute = 0;
+        int second = 0;
+        int nano = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "hour" :
+                    hour = reader.nextInt();
+                    break;
+                case "minute" :
+                    minute = reader.nextInt();
+                    break;
+                case "second" :
+                    second = reader.nextInt();
+                    break;
+                case "nano" :
+                    nano = reader.nextInt();
+                    break;
+                default :
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return LocalTime.of(hour, minute, second, nano);
+    }
+}
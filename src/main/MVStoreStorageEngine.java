@@ -0,0 +1,207 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Keeps the tasks in an MVStore, the embedded key-value store of H2, in one
+ * file next to the save file. No server is involved.
+ *
+ * Each task is stored on its own as a JSON object, so changing one task
+ * writes a few pages of the store's B-tree instead of the whole list. Tasks
+ * are keyed by the order they were added in, and a second map finds that
+ * position from the task id:
+ *
+ * tasks:     position -> task as JSON
+ * positions: task id  -> position
+ *
+ * Automatic commits are off. A batch of changes is committed together, or
+ * rolled back if it fails.
+ *
+ * H2 locks the file while the store is open, so a second instance cannot
+ * open it. The constructor tries for a moment, as the other instance may be
+ * closing, and then throws an IOException.
+ */
+public class MVStoreStorageEngine implements StorageEngine {
+    private static final String TASKS_MAP = "tasks";
+    private static final String POSITIONS_MAP = "positions";
+    private static final String FILE_SUFFIX = ".mv";
+    private static final int OPEN_ATTEMPTS = 10;
+    private static final long OPEN_RETRY_DELAY = 100;
+
+    private File file;
+    private Gson gson;
+    private MVStore store;
+    private MVMap<Long, String> tasks;
+    private MVMap<Long, Long> positions;
+
+    public MVStoreStorageEngine(File file, Gson gson) throws IOException {
+        this.file = file;
+        this.gson = gson;
+        for (int attempt = 1; store == null; attempt++) {
+            try {
+                open();
+            } catch (IllegalStateException e) {
+                if (attempt == OPEN_ATTEMPTS) {
+                    throw new IOException("Could not open " + file
+                            + ", it may be open in another instance", e);
+                }
+                sleep(OPEN_RETRY_DELAY);
+            }
+        }
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    @Override
+    public ArrayList<Task> scan() {
+        ArrayList<Task> output = new ArrayList<Task>();
+        for (String json : tasks.values()) {
+            Task task = toTask(json);
+            if (task != null) {
+                output.add(task);
+            }
+        }
+        return output;
+    }
+
+    @Override
+    public Task get(long taskId) {
+        Long position = positions.get(taskId);
+        return position == null ? null : toTask(tasks.get(position));
+    }
+
+    @Override
+    public Boolean commit(List<JournalEntry> entries) {
+        try {
+            for (JournalEntry entry : entries) {
+                applyEntry(entry);
+            }
+            store.commit();
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            store.rollback();
+            return false;
+        }
+    }
+
+    @Override
+    public Boolean replaceAll(ArrayList<Task> input) {
+        try {
+            tasks.clear();
+            positions.clear();
+            long position = 0;
+            for (Task task : input) {
+                tasks.put(position, gson.toJson(task, Task.class));
+                positions.put(task.getTaskId(), position);
+                position++;
+            }
+            store.commit();
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            store.rollback();
+            return false;
+        }
+    }
+
+    @Override
+    public Boolean moveTo(String saveFileName) {
+        File oldFile = file;
+        File newFile = getFile(saveFileName);
+        close();
+        if (!FileMover.move(oldFile, newFile)) {
+            open();
+            return false;
+        }
+        file = newFile;
+        try {
+            open();
+            return true;
+        } catch (IllegalStateException e) {
+            // the store is never left closed, so it goes back where it was
+            e.printStackTrace();
+            if (FileMover.move(newFile, oldFile)) {
+                file = oldFile;
+            }
+            open();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!store.isClosed()) {
+            store.close();
+        }
+    }
+
+    // ================================================================
+    // get the store file that belongs to a save file
+    // ================================================================
+    public static File getFile(String saveFileName) {
+        return new File(saveFileName + FILE_SUFFIX);
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+    private void open() {
+        store = new MVStore.Builder()
+                .fileName(file.getPath())
+                .autoCommitDisabled()
+                .open();
+        tasks = store.openMap(TASKS_MAP);
+        positions = store.openMap(POSITIONS_MAP);
+    }
+
+    // New tasks go after the last one, changed tasks keep their position
+    private void applyEntry(JournalEntry entry) {
+        Long position = positions.get(entry.getTaskId());
+        switch (entry.getType()) {
+            case ADD :
+            case UPDATE :
+                if (position == null) {
+                    Long lastPosition = tasks.lastKey();
+                    position = lastPosition == null ? 0 : lastPosition + 1;
+                    positions.put(entry.getTaskId(), position);
+                }
+                tasks.put(position, gson.toJson(entry.getTask(), Task.class));
+                break;
+            case REMOVE :
+                if (position != null) {
+                    tasks.remove(position);
+                    positions.remove(entry.getTaskId());
+                }
+                break;
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening the store", e);
+        }
+    }
+
+    private Task toTask(String json) {
+        try {
+            return gson.fromJson(json, Task.class);
+        } catch (JsonParseException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package main;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A map from long keys that does not change, where put and remove return a
+ * new map. It is a hash array mapped trie: each node holds a 32-bit bitmap
+ * of the slots in use and an array of just those slots, where a slot is an
+ * entry or a node one level down.
+ *
+ * A new map copies only the nodes on the path to the changed key, and shares
+ * all others with the old map. Because of that, forEachDifference only has
+ * to look at the nodes that are not shared between two maps.
+ *
+ * The keys are mixed by a function that has an inverse, so two keys never
+ * get the same hash, and no collision lists are needed.
+ */
+final class PersistentLongMap<V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentLongMap<?> EMPTY = new PersistentLongMap<Object>(
+            new Node(0, new Object[0]), 0);
+
+    // Calls for the keys that two maps do not have in common
+    interface DifferenceListener<V> {
+        // a value is null if that map does not have the key
+        void onDifference(long key, V value, V otherValue);
+    }
+
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots; // Entry or Node
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int indexOf(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    private static final class Entry {
+        final long key;
+        final long hash;
+        final Object value;
+
+        Entry(long key, long hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private PersistentLongMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentLongMap<V> empty() {
+        return (PersistentLongMap<V>) EMPTY;
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        long hash = hash(key);
+        Node node = root;
+        for (int shift = 0;; shift += BITS) {
+            int bit = bitAt(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[node.indexOf(bit)];
+            if (slot instanceof Entry) {
+                Entry entry = (Entry) slot;
+                return entry.key == key ? (V) entry.value : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    PersistentLongMap<V> put(long key, V value) {
+        boolean[] isAdded = new boolean[1];
+        Node newRoot = put(root, 0, new Entry(key, hash(key), value), isAdded);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentLongMap<V>(newRoot, isAdded[0] ? size + 1 : size);
+    }
+
+    PersistentLongMap<V> remove(long key) {
+        Object newRoot = remove(root, 0, key, hash(key));
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot instanceof Entry) {
+            // the root is never collapsed into an entry
+            Entry entry = (Entry) newRoot;
+            newRoot = new Node(bitAt(entry.hash, 0), new Object[] { entry });
+        }
+        return new PersistentLongMap<V>(newRoot == null ? EMPTY.root : (Node) newRoot, size - 1);
+    }
+
+    /**
+     * Calls the listener for every key that is only in one of the maps, or
+     * whose values are not the same object. Nodes the maps share are skipped.
+     */
+    void forEachDifference(PersistentLongMap<V> other, DifferenceListener<V> listener) {
+        difference(root, other.root, listener);
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+
+    // Murmur3's final mix, which is a bijection of the 64-bit values
+    private static long hash(long key) {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int bitAt(long hash, int shift) {
+        return 1 << ((int) (hash >>> shift) & MASK);
+    }
+
+    private static Node put(Node node, int shift, Entry entry, boolean[] isAdded) {
+        int bit = bitAt(entry.hash, shift);
+        int index = node.indexOf(bit);
+        if ((node.bitmap & bit) == 0) {
+            isAdded[0] = true;
+            return new Node(node.bitmap | bit, insert(node.slots, index, entry));
+        }
+        Object slot = node.slots[index];
+        Object newSlot;
+        if (slot instanceof Node) {
+            newSlot = put((Node) slot, shift + BITS, entry, isAdded);
+        } else {
+            Entry oldEntry = (Entry) slot;
+            if (oldEntry.key == entry.key) {
+                newSlot = oldEntry.value == entry.value ? oldEntry : entry;
+            } else {
+                isAdded[0] = true;
+                newSlot = merge(oldEntry, entry, shift + BITS);
+            }
+        }
+        return newSlot == slot ? node : new Node(node.bitmap, replace(node.slots, index, newSlot));
+    }
+
+    // Two entries that share the hash bits so far, one level down
+    private static Node merge(Entry first, Entry second, int shift) {
+        int firstBit = bitAt(first.hash, shift);
+        int secondBit = bitAt(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new Node(firstBit, new Object[] { merge(first, second, shift + BITS) });
+        }
+        Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new Object[] { first, second } : new Object[] { second, first };
+        return new Node(firstBit | secondBit, slots);
+    }
+
+    // Returns the node, an entry if only one is left, or null if none is
+    private static Object remove(Node node, int shift, long key, long hash) {
+        int bit = bitAt(hash, shift);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = node.indexOf(bit);
+        Object slot = node.slots[index];
+        Object newSlot;
+        if (slot instanceof Node) {
+            newSlot = remove((Node) slot, shift + BITS, key, hash);
+        } else {
+            newSlot = ((Entry) slot).key == key ? null : slot;
+        }
+        if (newSlot == slot) {
+            return node;
+        }
+        if (newSlot == null) {
+            if (node.slots.length == 1) {
+                return null;
+            }
+            Object[] slots = delete(node.slots, index);
+            if (slots.length == 1 && slots[0] instanceof Entry) {
+                return slots[0];
+            }
+            return new Node(node.bitmap & ~bit, slots);
+        }
+        if (newSlot instanceof Entry && node.slots.length == 1) {
+            return newSlot;
+        }
+        return new Node(node.bitmap, replace(node.slots, index, newSlot));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void difference(Object slot, Object otherSlot,
+                                       DifferenceListener<V> listener) {
+        if (slot == otherSlot) {
+            return;
+        }
+        if (slot instanceof Node && otherSlot instanceof Node) {
+            Node node = (Node) slot;
+            Node otherNode = (Node) otherSlot;
+            int bits = node.bitmap | otherNode.bitmap;
+            while (bits != 0) {
+                int bit = Integer.lowestOneBit(bits);
+                bits &= ~bit;
+                Object child = (node.bitmap & bit) == 0 ? null : node.slots[node.indexOf(bit)];
+                Object otherChild = (otherNode.bitmap & bit) == 0
+                        ? null : otherNode.slots[otherNode.indexOf(bit)];
+                difference(child, otherChild, listener);
+            }
+            return;
+        }
+        // an entry on one side, so the other side holds few entries
+        HashMap<Long, Object> values = new HashMap<Long, Object>();
+        HashMap<Long, Object> otherValues = new HashMap<Long, Object>();
+        collect(slot, values);
+        collect(otherSlot, otherValues);
+        HashSet<Long> keys = new HashSet<Long>(values.keySet());
+        keys.addAll(otherValues.keySet());
+        for (long key : keys) {
+            Object value = values.get(key);
+            Object otherValue = otherValues.get(key);
+            if (value != otherValue) {
+                listener.onDifference(key, (V) value, (V) otherValue);
+            }
+        }
+    }
+
+    private static void collect(Object slot, Map<Long, Object> values) {
+        if (slot instanceof Entry) {
+            values.put(((Entry) slot).key, ((Entry) slot).value);
+        } else if (slot instanceof Node) {
+            for (Object child : ((Node) slot).slots) {
+                collect(child, values);
+            }
+        }
+    }
+
+    private static Object[] insert(Object[] slots, int index, Object slot) {
+        Object[] output = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, output, 0, index);
+        output[index] = slot;
+        System.arraycopy(slots, index, output, index + 1, slots.length - index);
+        return output;
+    }
+
+    private static Object[] replace(Object[] slots, int index, Object slot) {
+        Object[] output = slots.clone();
+        output[index] = slot;
+        return output;
+    }
+
+    private static Object[] delete(Object[] slots, int index) {
+        Object[] output = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, output, 0, index);
+        System.arraycopy(slots, index + 1, output, index, slots.length - index - 1);
+        return output;
+    }
+}
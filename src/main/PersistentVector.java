@@ -0,0 +1,165 @@
+package main;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A list that does not change, where set and add return a new list.
+ *
+ * The elements are kept in a tree of arrays with 32 slots, like the vectors
+ * of Clojure and Scala. A new list copies only the arrays on the path to the
+ * changed slot, that is log32(size) arrays, and shares all others with the
+ * old list. So keeping the old list, e.g. for undo, costs next to nothing.
+ */
+final class PersistentVector<T> implements Iterable<T> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final PersistentVector<?> EMPTY = new PersistentVector<Object>(0, 0,
+                                                                                  new Object[WIDTH]);
+
+    private final int size;
+    private final int shift; // BITS times the levels above the leaves
+    private final Object[] root;
+
+    private PersistentVector(int size, int shift, Object[] root) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    // Builds the tree level by level, without copying any path
+    static <T> PersistentVector<T> of(List<T> elements) {
+        if (elements.size() <= WIDTH) {
+            Object[] leaf = new Object[WIDTH];
+            for (int i = 0; i < elements.size(); i++) {
+                leaf[i] = elements.get(i);
+            }
+            return new PersistentVector<T>(elements.size(), 0, leaf);
+        }
+        Object[] level = new Object[(elements.size() + MASK) / WIDTH];
+        for (int i = 0; i < elements.size(); i++) {
+            if (level[i / WIDTH] == null) {
+                level[i / WIDTH] = new Object[WIDTH];
+            }
+            ((Object[]) level[i / WIDTH])[i & MASK] = elements.get(i);
+        }
+        int shift = 0;
+        while (level.length > 1) {
+            Object[] parents = new Object[(level.length + MASK) / WIDTH];
+            for (int i = 0; i < level.length; i++) {
+                if (parents[i / WIDTH] == null) {
+                    parents[i / WIDTH] = new Object[WIDTH];
+                }
+                ((Object[]) parents[i / WIDTH])[i & MASK] = level[i];
+            }
+            level = parents;
+            shift += BITS;
+        }
+        return new PersistentVector<T>(elements.size(), shift, (Object[]) level[0]);
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        checkIndex(index);
+        return (T) getLeaf(index)[index & MASK];
+    }
+
+    PersistentVector<T> set(int index, T element) {
+        checkIndex(index);
+        return new PersistentVector<T>(size, shift, set(root, shift, index, element));
+    }
+
+    PersistentVector<T> add(T element) {
+        Object[] newRoot = root;
+        int newShift = shift;
+        // the tree is full, so it gets a level on top
+        if (size == 1 << (shift + BITS)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newShift += BITS;
+        }
+        return new PersistentVector<T>(size + 1, newShift,
+                                       append(newRoot, newShift, size, element));
+    }
+
+    // Walks the leaves in order, one array at a time
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+            private Object[] leaf;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                if ((index & MASK) == 0 || leaf == null) {
+                    leaf = getLeaf(index);
+                }
+                return (T) leaf[index++ & MASK];
+            }
+        };
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private Object[] getLeaf(int index) {
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private static Object[] set(Object[] node, int level, int index, Object element) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = element;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = set((Object[]) node[child], level - BITS, index, element);
+        }
+        return copy;
+    }
+
+    // Creates the arrays on the path that do not exist yet
+    private static Object[] append(Object[] node, int level, int index, Object element) {
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        if (level == 0) {
+            copy[index & MASK] = element;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = append((Object[]) copy[child], level - BITS, index, element);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,191 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals records of the save file and the journal with AES-GCM, so they can
+ * be encrypted and decrypted one at a time.
+ *
+ * A sealed record is one line of Base64 text holding a random 12-byte nonce,
+ * the ciphertext and the 16-byte tag. The tag also finds records that were
+ * damaged or changed, so a record that opens is known to be intact.
+ *
+ * Records can be sealed together with associated data, such as the header of
+ * their file and their place in it. The data is not stored in the record but
+ * covered by the tag, so a record only opens at the place it was sealed for
+ * and cannot be moved, repeated or put in another file unnoticed.
+ *
+ * The 256-bit key is kept Base64-encoded in a key file, which is created
+ * with a new random key if it does not exist. The key file should be kept
+ * somewhere else than the save file, e.g. on a separate drive.
+ */
+public class RecordCipher {
+    private static final String ALGORITHM = "AES";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE_BITS = 128;
+    private static final int FILE_ID_SIZE = 16;
+    private static final String KEY_FILE_PERMISSIONS = "rw-------";
+
+    private SecretKeySpec key;
+    private SecureRandom random = new SecureRandom();
+
+    // Cipher objects are not thread-safe, and the journal and snapshots are
+    // written on different threads
+    private ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public RecordCipher(byte[] key) {
+        this.key = new SecretKeySpec(key, ALGORITHM);
+    }
+
+    /**
+     * Loads the key from the key file, creating the file with a new key if
+     * it does not exist.
+     *
+     * @throws IOException if the key file cannot be read or written, or does
+     *                     not hold a 256-bit key
+     */
+    public static RecordCipher fromKeyFile(File keyFile) throws IOException {
+        if (!keyFile.exists()) {
+            createKeyFile(keyFile);
+        }
+        byte[] key;
+        try {
+            String text = new String(Files.readAllBytes(keyFile.toPath()),
+                                     StandardCharsets.US_ASCII);
+            key = Base64.getDecoder().decode(text.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Key file " + keyFile + " is not Base64", e);
+        }
+        if (key.length != KEY_SIZE) {
+            throw new IOException("Key file " + keyFile + " does not hold a 256-bit key");
+        }
+        return new RecordCipher(key);
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    public String seal(String plaintext) {
+        return seal(plaintext, null);
+    }
+
+    // The associated data must be given again to open the line
+    public String seal(String plaintext, String associatedData) {
+        return Base64.getEncoder().encodeToString(
+                seal(plaintext.getBytes(StandardCharsets.UTF_8), toBytes(associatedData)));
+    }
+
+    public String open(String sealed) throws GeneralSecurityException {
+        return open(sealed, null);
+    }
+
+    /**
+     * Opens a sealed line.
+     *
+     * @param associatedData what the line was sealed with, or null
+     * @throws GeneralSecurityException if the line is damaged, was changed,
+     *                                  was sealed with other associated data
+     *                                  or with another key
+     */
+    public String open(String sealed, String associatedData) throws GeneralSecurityException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(sealed.trim());
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("not a sealed record");
+        }
+        return new String(open(bytes, toBytes(associatedData)), StandardCharsets.UTF_8);
+    }
+
+    public byte[] seal(byte[] plaintext) {
+        return seal(plaintext, null);
+    }
+
+    public byte[] seal(byte[] plaintext, byte[] associatedData) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE_BITS, nonce));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            ByteBuffer sealed = ByteBuffer.allocate(NONCE_SIZE
+                                                    + cipher.getOutputSize(plaintext.length));
+            sealed.put(nonce);
+            cipher.doFinal(ByteBuffer.wrap(plaintext), sealed);
+            return sealed.array();
+        } catch (GeneralSecurityException e) {
+            // AES-GCM is available on every Java 8 runtime
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] open(byte[] sealed) throws GeneralSecurityException {
+        return open(sealed, null);
+    }
+
+    public byte[] open(byte[] sealed, byte[] associatedData) throws GeneralSecurityException {
+        if (sealed.length < NONCE_SIZE + TAG_SIZE_BITS / 8) {
+            throw new GeneralSecurityException("sealed record is too short");
+        }
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_SIZE_BITS, sealed, 0, NONCE_SIZE));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        return cipher.doFinal(sealed, NONCE_SIZE, sealed.length - NONCE_SIZE);
+    }
+
+    // A random name for a new file, to tell its records from those of
+    // other files sealed with the same key
+    public String createFileId() {
+        byte[] id = new byte[FILE_ID_SIZE];
+        random.nextBytes(id);
+        return Base64.getEncoder().encodeToString(id);
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+    private static byte[] toBytes(String associatedData) {
+        return associatedData == null ? null : associatedData.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Only the owner may read the key, where the file system allows it
+    private static void createKeyFile(File keyFile) throws IOException {
+        byte[] key = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        if (keyFile.getAbsoluteFile().getParentFile() != null) {
+            keyFile.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        try {
+            Files.createFile(keyFile.toPath(), PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString(KEY_FILE_PERMISSIONS)));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(keyFile.toPath());
+        }
+        Files.write(keyFile.toPath(), Base64.getEncoder().encode(key));
+    }
+}
@@ -0,0 +1,161 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The tasks that could be read from a save file, and the records that had to
+ * be skipped because they were damaged.
+ *
+ * Each run of skipped records leaves a gap between the good tasks around it.
+ * The gaps remember those tasks, so fillGapsFrom(RecoveredTasks) can take just
+ * the missing tasks from the backup and put them back in their place.
+ */
+public class RecoveredTasks {
+    private ArrayList<Task> tasks;
+    private ArrayList<String> skippedRecords;
+    private ArrayList<Gap> gaps;
+    private int tasksFromBackup;
+
+    // The good tasks before and after a run of damaged records, null at
+    // either end of the file
+    private static class Gap {
+        private Task previousTask;
+        private Task nextTask;
+    }
+
+    /**
+     * Applies the series headers and collects the complete tasks.
+     *
+     * @param records        tasks and series headers in file order, with null
+     *                       for every damaged record
+     * @param skippedRecords a description of each damaged record
+     */
+    public RecoveredTasks(List<Task> records, List<String> skippedRecords) {
+        this.tasks = new ArrayList<Task>(records.size());
+        this.skippedRecords = new ArrayList<String>(skippedRecords);
+        this.gaps = new ArrayList<Gap>();
+
+        SeriesHeader.resolve(records);
+        Gap gap = null;
+        for (Task record : records) {
+            if (record != null && !isComplete(record)) {
+                this.skippedRecords.add("task " + record.getTaskId() + ": missing fields");
+                record = null;
+            }
+            if (record == null) {
+                if (gap == null) {
+                    gap = new Gap();
+                    gap.previousTask = tasks.isEmpty() ? null : tasks.get(tasks.size() - 1);
+                    gaps.add(gap);
+                }
+                continue;
+            }
+            if (gap != null) {
+                gap.nextTask = record;
+                gap = null;
+            }
+            tasks.add(record);
+        }
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    public ArrayList<Task> getTasks() {
+        return tasks;
+    }
+
+    public ArrayList<String> getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    // The number of tasks fillGapsFrom took from the backup
+    public int getTasksFromBackup() {
+        return tasksFromBackup;
+    }
+
+    // Checks whether every record in the file could be read
+    public boolean isComplete() {
+        return skippedRecords.isEmpty();
+    }
+
+    /**
+     * Gets the task after the last gap. The backup only has to be read up to
+     * this task to fill every gap.
+     *
+     * @return the task id, or null if the whole backup has to be read
+     */
+    public Long getLastGapEnd() {
+        if (gaps.isEmpty() || gaps.get(gaps.size() - 1).nextTask == null) {
+            return null;
+        }
+        return gaps.get(gaps.size() - 1).nextTask.getTaskId();
+    }
+
+    /**
+     * Puts the tasks that the backup has in place of each gap back into it.
+     * Tasks that were read fine are never replaced. A gap whose surrounding
+     * tasks are not in the backup cannot be placed and stays empty.
+     *
+     * @return the number of tasks taken from the backup
+     */
+    public int fillGapsFrom(RecoveredTasks backup) {
+        HashSet<Long> knownIds = new HashSet<Long>();
+        for (Task task : tasks) {
+            knownIds.add(task.getTaskId());
+        }
+        HashMap<Long, Integer> backupPositions = new HashMap<Long, Integer>();
+        for (int i = 0; i < backup.tasks.size(); i++) {
+            backupPositions.put(backup.tasks.get(i).getTaskId(), i);
+        }
+
+        // tasks to insert, keyed by the task they come after
+        HashMap<Task, ArrayList<Task>> insertions = new HashMap<Task, ArrayList<Task>>();
+        ArrayList<Task> atStart = new ArrayList<Task>();
+        int filled = 0;
+        for (Gap gap : gaps) {
+            Integer from = gap.previousTask == null
+                    ? Integer.valueOf(-1) : backupPositions.get(gap.previousTask.getTaskId());
+            Integer to = gap.nextTask == null
+                    ? Integer.valueOf(backup.tasks.size()) : backupPositions.get(gap.nextTask.getTaskId());
+            if (from == null || to == null) {
+                continue;
+            }
+            ArrayList<Task> missing = gap.previousTask == null
+                    ? atStart
+                    : insertions.computeIfAbsent(gap.previousTask, task -> new ArrayList<Task>());
+            for (int i = from + 1; i < to; i++) {
+                Task task = backup.tasks.get(i);
+                if (knownIds.add(task.getTaskId())) {
+                    missing.add(task);
+                    filled++;
+                }
+            }
+        }
+
+        ArrayList<Task> filledTasks = new ArrayList<Task>(tasks.size() + filled);
+        filledTasks.addAll(atStart);
+        for (Task task : tasks) {
+            filledTasks.add(task);
+            ArrayList<Task> missing = insertions.get(task);
+            if (missing != null) {
+                filledTasks.addAll(missing);
+            }
+        }
+        tasks = filledTasks;
+        tasksFromBackup += filled;
+        return filled;
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+
+    // Every task made by CreateTask has these fields
+    private boolean isComplete(Task task) {
+        return task.getType() != null && task.getDescription() != null;
+    }
+}
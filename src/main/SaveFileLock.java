@@ -0,0 +1,82 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An advisory lock that keeps two running instances of the app from writing
+ * the same save file at the same time.
+ *
+ * The lock is taken on a separate lock file next to the save file, so it
+ * does not get in the way of snapshots being replaced by a rename. It is
+ * reentrant, and threads of the same instance also wait for each other,
+ * since a FileLock is held by the whole process.
+ */
+public class SaveFileLock {
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+
+    private File lockFile;
+    private ReentrantLock threadLock = new ReentrantLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+
+    public SaveFileLock(String saveFileName) {
+        lockFile = new File(saveFileName + LOCK_FILE_SUFFIX);
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+
+    // Waits until no other instance writes the save file. If the lock file
+    // cannot be used, only threads of this instance are kept apart
+    public void acquire() {
+        threadLock.lock();
+        if (threadLock.getHoldCount() > 1) {
+            return;
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                                           StandardOpenOption.WRITE);
+            }
+            fileLock = channel.lock();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void release() {
+        try {
+            if (threadLock.getHoldCount() == 1 && fileLock != null) {
+                fileLock.release();
+                fileLock = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            threadLock.unlock();
+        }
+    }
+
+    // Closes and removes the lock file once the save file has moved away
+    public void delete() {
+        acquire();
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                fileLock = null;
+            }
+            lockFile.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            threadLock.unlock();
+        }
+    }
+}
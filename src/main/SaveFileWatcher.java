@@ -0,0 +1,171 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * This class notices when the save file is changed by another program, such
+ * as a script or another instance of the app.
+ *
+ * It watches the directory of the save file with a WatchService. Storage
+ * calls recordOwnWrite() after each of its own writes, so only changes made
+ * by others are reported. A change is reported as an append when the file is
+ * the same file as before, has grown, and still ends the old part with the
+ * same bytes. Otherwise it is reported as a rewrite.
+ */
+public class SaveFileWatcher {
+    private static final long SETTLE_DELAY = 100;
+    private static final int TAIL_SIZE = 256;
+
+    private File file;
+    private Listener listener;
+    private WatchService watchService;
+
+    // what the file looked like after the last change we know of
+    private Object fileKey;
+    private long size;
+    private long modifiedTime;
+    private long tailChecksum;
+
+    public interface Listener {
+        // Called when records were added after the given offset
+        public void fileAppended(long offset);
+
+        // Called when the file was changed in any other way
+        public void fileRewritten();
+    }
+
+    public SaveFileWatcher(File file, Listener listener) {
+        this.file = file.getAbsoluteFile();
+        this.listener = listener;
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+
+    // Starts watching on a daemon thread
+    public void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            file.getParentFile().toPath().register(watchService,
+                                                   StandardWatchEventKinds.ENTRY_CREATE,
+                                                   StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        recordOwnWrite();
+        Thread thread = new Thread(this::watch, "storage-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Remembers the file as it is now, so the change is not reported
+    public synchronized void recordOwnWrite() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+                                                                  BasicFileAttributes.class);
+            fileKey = attributes.fileKey();
+            size = attributes.size();
+            modifiedTime = attributes.lastModifiedTime().toMillis();
+            tailChecksum = checksumBefore(size);
+        } catch (IOException e) {
+            fileKey = null;
+            size = 0;
+            modifiedTime = 0;
+            tailChecksum = 0;
+        }
+    }
+
+    // ================================================================
+    // Private methods (watcher thread)
+    // ================================================================
+    private void watch() {
+        Path fileName = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean isChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    isChanged |= fileName.equals(event.context())
+                            || event.kind() == StandardWatchEventKinds.OVERFLOW;
+                }
+                key.reset();
+                if (isChanged) {
+                    // let the other program finish writing
+                    Thread.sleep(SETTLE_DELAY);
+                    reportChange();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void reportChange() {
+        long appendedFrom;
+        synchronized (this) {
+            Object oldFileKey = fileKey;
+            long oldSize = size;
+            long oldModifiedTime = modifiedTime;
+            long oldTailChecksum = tailChecksum;
+            recordOwnWrite();
+            if (Objects.equals(oldFileKey, fileKey) && oldSize == size
+                    && oldModifiedTime == modifiedTime) {
+                return;
+            }
+            boolean isAppended = Objects.equals(oldFileKey, fileKey) && size > oldSize
+                    && checksumBefore(oldSize) == oldTailChecksum;
+            appendedFrom = isAppended ? oldSize : -1;
+        }
+        // outside the lock, as the listener may write the file itself
+        if (appendedFrom >= 0) {
+            listener.fileAppended(appendedFrom);
+        } else {
+            listener.fileRewritten();
+        }
+    }
+
+    // Checksum of the bytes just before the given offset
+    private long checksumBefore(long offset) {
+        int length = (int) Math.min(TAIL_SIZE, offset);
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()
+                    && channel.read(bytes, offset - length + bytes.position()) > 0) {
+                // read until the buffer is full
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        bytes.flip();
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes);
+        return checksum.getValue();
+    }
+}
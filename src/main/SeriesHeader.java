@@ -0,0 +1,139 @@
+package main;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The fields that every instance of a recurring task has in common, written
+ * once per series in the save file.
+ *
+ * A field is only set in the header when all instances have the same value.
+ * Instances leave those fields out on disk, and applyTo(Task) fills them in
+ * again when the file is read. All instances then share the same strings and
+ * the same list of exception dates, just like when the series was created.
+ */
+class SeriesHeader extends Task {
+    private TaskSeries sharedSeries;
+
+    // ================================================================
+    // Creating headers
+    // ================================================================
+
+    /**
+     * Finds the shared fields of every recurring series in the tasks.
+     *
+     * @return headers keyed by recurId
+     */
+    static LinkedHashMap<String, SeriesHeader> createHeaders(List<Task> tasks) {
+        LinkedHashMap<String, SeriesHeader> headers = new LinkedHashMap<String, SeriesHeader>();
+        for (Task task : tasks) {
+            if (!task.isRecurring()) {
+                continue;
+            }
+            SeriesHeader header = headers.get(task.getId());
+            if (header == null) {
+                headers.put(task.getId(), new SeriesHeader(task));
+            } else {
+                header.keepSharedFields(task);
+            }
+        }
+        return headers;
+    }
+
+    // Used by TaskTypeAdapter when loading a header
+    SeriesHeader() {
+    }
+
+    private SeriesHeader(Task task) {
+        setId(task.getId());
+        setRawInfo(task.getRawInfo());
+        setDescription(task.getDescription());
+        setType(task.getType());
+        setStartTime(task.getStartTime());
+        setEndTime(task.getEndTime());
+        setException(task.getExceptionDates());
+    }
+
+    private void keepSharedFields(Task task) {
+        if (!Objects.equals(getRawInfo(), task.getRawInfo())) {
+            setRawInfo(null);
+        }
+        if (!Objects.equals(getDescription(), task.getDescription())) {
+            setDescription(null);
+        }
+        if (getType() != task.getType()) {
+            setType(null);
+        }
+        if (!Objects.equals(getStartTime(), task.getStartTime())) {
+            setStartTime(null);
+        }
+        if (!Objects.equals(getEndTime(), task.getEndTime())) {
+            setEndTime(null);
+        }
+        if (!Objects.equals(getExceptionDates(), task.getExceptionDates())) {
+            setException(null);
+        }
+    }
+
+    // ================================================================
+    // Reading instances
+    // ================================================================
+
+    // Fills in the fields that an instance left out because they are shared.
+    // If the exception dates are shared, the instance points to one
+    // TaskSeries like the other instances, else it gets its own copies
+    void applyTo(Task task) {
+        if (getExceptionDates() != null) {
+            task.setSeries(getSharedSeries());
+        } else {
+            if (getRawInfo() != null) {
+                task.setRawInfo(getRawInfo());
+            }
+            if (getDescription() != null) {
+                task.setDescription(getDescription());
+            }
+        }
+        if (getType() != null) {
+            task.setType(getType());
+        }
+        if (getStartTime() != null) {
+            task.setStartTime(getStartTime());
+        }
+        if (getEndTime() != null) {
+            task.setEndTime(getEndTime());
+        }
+    }
+
+    private TaskSeries getSharedSeries() {
+        if (sharedSeries == null) {
+            sharedSeries = new TaskSeries(getId(), getRawInfo(), getDescription(),
+                                          getExceptionDates());
+        }
+        return sharedSeries;
+    }
+
+    /**
+     * Applies the headers to the instances that follow them and drops the
+     * headers from the list.
+     *
+     * @param records tasks and headers in file order, null for damaged records
+     */
+    static void resolve(List<Task> records) {
+        LinkedHashMap<String, SeriesHeader> headers = new LinkedHashMap<String, SeriesHeader>();
+        records.removeIf(record -> {
+            if (record instanceof SeriesHeader) {
+                headers.put(record.getId(), (SeriesHeader) record);
+                return true;
+            }
+            if (record == null) {
+                return false;
+            }
+            SeriesHeader header = record.isRecurring() ? headers.get(record.getId()) : null;
+            if (header != null) {
+                header.applyTo(record);
+            }
+            return false;
+        });
+    }
+}
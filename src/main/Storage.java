@@ -7,28 +7,124 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
 
 public class Storage {
+    private static final Logger logger = Logger.getLogger(Storage.class.getName());
     private static final String DEFAULT_SAVE_FILE = "savefile.txt";
     private static final String SETTINGS_FILE_NAME = "settings.txt";
     private static final String BACKUP_FILE_NAME = "backup.txt";
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final String PENDING_JOURNAL_FILE_SUFFIX = ".journal.compacting";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int COMPACTION_RECORD_LIMIT = 1000;
+    private static final long COMPACTION_SIZE_LIMIT = 1024 * 1024;
+    private static final String SETTING_SEPARATOR = "=";
+    private static final String SETTING_FLUSH_POLICY = "flushPolicy";
+    private static final String SETTING_FLUSH_DELAY = "flushDelay";
+    private static final String DEFAULT_FLUSH_POLICY = "GROUP_COMMIT";
+    private static final String DEFAULT_FLUSH_DELAY = "100";
+    private static final String SETTING_FORMAT = "format";
+    private static final String FORMAT_JSON = "json";
+    private static final String FORMAT_BINARY = "binary";
+    private static final String SETTING_ARCHIVE_AFTER_DAYS = "archiveAfterDays";
+    private static final String DEFAULT_ARCHIVE_AFTER_DAYS = "30";
+    private static final String SETTING_CHECKSUMS = "checksums";
+    private static final String DEFAULT_CHECKSUMS = "false";
+    private static final String SETTING_BACKUP_GENERATIONS = "backupGenerations";
+    private static final String DEFAULT_BACKUP_GENERATIONS = "5";
+    private static final String SETTING_BACKUP_EVERY = "backupEveryMutations";
+    private static final String DEFAULT_BACKUP_EVERY = "100";
+    private static final String SETTING_BACKUP_INTERVAL = "backupIntervalMinutes";
+    private static final String DEFAULT_BACKUP_INTERVAL = "10";
+    private static final String SETTING_ENGINE = "engine";
+    private static final String ENGINE_FILES = "files";
+    private static final String ENGINE_MVSTORE = "mvstore";
+    private static final String ENGINE_MEMORY = "memory";
+    private static final String SETTING_ENCRYPTION_KEY_FILE = "encryptionKeyFile";
+    private static final String DEFAULT_ENCRYPTION_KEY_FILE = "";
+    private static final String HISTORY_FILE_SUFFIX = ".history";
+    private static final String SETTING_UNDO_LIMIT = "undoLimit";
+    private static final String DEFAULT_UNDO_LIMIT = "1000";
+    private static final String SETTING_UNDO_STATES_IN_MEMORY = "undoStatesInMemory";
+    private static final String DEFAULT_UNDO_STATES_IN_MEMORY = "100";
+    private static final String SETTING_UNDO_MEMORY_KB = "undoMemoryKb";
+    private static final String DEFAULT_UNDO_MEMORY_KB = "4096";
+    private static final String ARCHIVE_DIRECTORY_SUFFIX = ".archive";
+    private static final String ARCHIVE_FILE_SUFFIX = ".txt";
 
     private String saveFileName;
+    private LinkedHashMap<String, String> settings;
     
     private static Storage storage;
     
     private static File settingsFile;
     private File saveFile;
     private File backupFile;
+    private BackupManager backups;
+    private SaveFileLock saveFileLock;
+    private SaveFileWatcher watcher;
+    private SaveFileWatcher journalWatcher;
+    private Consumer<List<JournalEntry>> externalChangeListener;
+
+    // the tasks as they are in the save file once all writes are done, to
+    // tell which tasks another program changed
+    private LinkedHashMap<Long, Task> knownTasks = new LinkedHashMap<Long, Task>();
+    private Journal journal;
+    // how much of the journal this instance has written or read, guarded by
+    // saveFileLock. Records after it were appended by another instance
+    private long knownJournalLength;
+    private StorageEngine engine;
+
+    // snapshots are written by the writer thread and the compaction thread
+    private final Object snapshotLock = new Object();
+    private ExecutorService compactionExecutor;
+    // started by the writer thread, waited for by the FX and watcher threads
+    private volatile Future<?> compaction;
+    private WriteBehindQueue writeQueue;
     
     private BufferedReader reader;
     private PrintWriter writer;
     
     private Gson gson;
+    private TaskTypeAdapter taskAdapter;
+    private JsonTaskCodec jsonCodec;
+    private BinaryTaskCodec binaryCodec;
+    private EncryptedTaskCodec encryptedCodec;
+    private TaskCodec codec;
+    private RecordCipher cipher;
+    // why changes are not saved, null if they are
+    private String readOnlyReason;
+    private int archiveAfterDays;
+    private int undoLimit;
+    private int undoStatesInMemory;
+    private int undoMemoryKb;
+    private ArrayList<String> skippedRecords = new ArrayList<String>();
+    private int tasksFromBackup;
 
     // ================================================================
     // get instance of Storage
@@ -44,16 +140,49 @@ public class Storage {
     // constructor
     // ================================================================
     private Storage() {
-        gson = new Gson();
+        taskAdapter = new TaskTypeAdapter();
+        gson = createGson();
         settingsFile = new File(SETTINGS_FILE_NAME);
         createIfMissingFile(settingsFile);
         saveFileName = getSaveFileNameFromSettingsFile(settingsFile);
-        updateSettingsFile(saveFileName);
+        settings = getSettingsFromSettingsFile(settingsFile);
+        boolean hasChecksums = Boolean.parseBoolean(getSetting(SETTING_CHECKSUMS,
+                                                               DEFAULT_CHECKSUMS));
+        jsonCodec = new JsonTaskCodec(taskAdapter, hasChecksums);
+        binaryCodec = new BinaryTaskCodec(hasChecksums);
+        cipher = createCipher();
+        encryptedCodec = new EncryptedTaskCodec(taskAdapter, cipher);
+        codec = getCodecFromSettings();
+        archiveAfterDays = getArchiveAfterDaysFromSettings();
+        undoLimit = getIntSetting(SETTING_UNDO_LIMIT, DEFAULT_UNDO_LIMIT);
+        undoStatesInMemory = getIntSetting(SETTING_UNDO_STATES_IN_MEMORY,
+                                           DEFAULT_UNDO_STATES_IN_MEMORY);
+        undoMemoryKb = getIntSetting(SETTING_UNDO_MEMORY_KB, DEFAULT_UNDO_MEMORY_KB);
+        writeQueue = createWriteQueue();
         saveFile = new File(saveFileName);
-        createIfMissingFile(saveFile);
         backupFile = new File(BACKUP_FILE_NAME);
-        createIfMissingFile(backupFile);
-        backupFile.setWritable(false);
+        backups = createBackupManager();
+        saveFileLock = new SaveFileLock(saveFileName);
+        engine = createEngine(saveFileName);
+        updateSettingsFile(saveFileName);
+        createIfMissingFile(saveFile);
+        journal = new Journal(getJournalFile(saveFileName), gson, cipher);
+        compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ================================================================
+    // Gson with hand-written adapters, so no reflection is needed
+    // ================================================================
+    private Gson createGson() {
+        return new GsonBuilder()
+                .registerTypeAdapter(Task.class, taskAdapter)
+                .registerTypeAdapter(LocalDate.class, new LocalDateTypeAdapter())
+                .registerTypeAdapter(LocalTime.class, new LocalTimeTypeAdapter())
+                .create();
     }
 
     // ================================================================
@@ -63,6 +192,9 @@ public class Storage {
         try {
             writer = new PrintWriter(settingsFile, "UTF-8");
             writer.println(fileName);
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                writer.println(setting.getKey() + SETTING_SEPARATOR + setting.getValue());
+            }
             writer.close();
         } catch (FileNotFoundException | UnsupportedEncodingException e) {
             e.printStackTrace();
@@ -86,6 +218,205 @@ public class Storage {
         return text;
     }
 
+    // ================================================================
+    // get the "key=value" settings that follow the save file name
+    // ================================================================
+    private LinkedHashMap<String, String> getSettingsFromSettingsFile(File fileName) {
+        LinkedHashMap<String, String> settings = new LinkedHashMap<String, String>();
+        String text = "";
+        initBufferedReader(fileName);
+        try {
+            reader.readLine();
+            while ((text = reader.readLine()) != null) {
+                String[] setting = text.split(SETTING_SEPARATOR, 2);
+                if (setting.length == 2) {
+                    settings.put(setting[0].trim(), setting[1].trim());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        closeBufferedReader();
+        return settings;
+    }
+
+    // ================================================================
+    // get a setting, adding the default to the settings file if missing
+    // ================================================================
+    private String getSetting(String key, String defaultValue) {
+        if (!settings.containsKey(key)) {
+            settings.put(key, defaultValue);
+        }
+        return settings.get(key);
+    }
+
+    // ================================================================
+    // get the format that snapshots are written in
+    // ================================================================
+    private TaskCodec getCodecFromSettings() {
+        String format = getSetting(SETTING_FORMAT, FORMAT_JSON);
+        if (cipher != null) {
+            return encryptedCodec;
+        } else if (format.equalsIgnoreCase(FORMAT_BINARY)) {
+            return binaryCodec;
+        } else {
+            return jsonCodec;
+        }
+    }
+
+    // ================================================================
+    // get the key that the save file is encrypted with, or null if the
+    // save file is not encrypted
+    // ================================================================
+    private RecordCipher createCipher() {
+        String keyFileName = getSetting(SETTING_ENCRYPTION_KEY_FILE,
+                                        DEFAULT_ENCRYPTION_KEY_FILE);
+        if (keyFileName.isEmpty()) {
+            return null;
+        }
+        try {
+            return RecordCipher.fromKeyFile(new File(keyFileName));
+        } catch (IOException e) {
+            // writing plain tasks where encrypted ones are expected would
+            // give them away
+            logger.log(Level.SEVERE, "Could not read the key file " + keyFileName, e);
+            setReadOnly("the key file " + keyFileName + " could not be read");
+            return null;
+        }
+    }
+
+    private boolean hasKeyFile() {
+        return !getSetting(SETTING_ENCRYPTION_KEY_FILE, DEFAULT_ENCRYPTION_KEY_FILE).isEmpty();
+    }
+
+    // ================================================================
+    // get how many days completed tasks stay in the save file. A
+    // negative number turns archiving off
+    // ================================================================
+    private int getArchiveAfterDaysFromSettings() {
+        try {
+            return Integer.parseInt(getSetting(SETTING_ARCHIVE_AFTER_DAYS,
+                                               DEFAULT_ARCHIVE_AFTER_DAYS));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(DEFAULT_ARCHIVE_AFTER_DAYS);
+        }
+    }
+
+    // ================================================================
+    // get the format that a file is in
+    // ================================================================
+    private TaskCodec getCodecOfFile(File file) {
+        if (EncryptedTaskCodec.isEncryptedFile(file)) {
+            return encryptedCodec;
+        } else if (BinaryTaskCodec.isBinaryFile(file)) {
+            return binaryCodec;
+        } else {
+            return jsonCodec;
+        }
+    }
+
+    // ================================================================
+    // create the engine that keeps the tasks of a save file
+    // ================================================================
+    private StorageEngine createEngine(String fileName) {
+        String engineName = getSetting(SETTING_ENGINE, ENGINE_FILES);
+        if (engineName.equalsIgnoreCase(ENGINE_MVSTORE)) {
+            if (hasKeyFile()) {
+                // the store keeps tasks as plain JSON
+                setReadOnly("engine=mvstore cannot encrypt tasks, remove encryptionKeyFile"
+                        + " or use engine=files");
+                return new InMemoryStorageEngine();
+            }
+            try {
+                return new MVStoreStorageEngine(MVStoreStorageEngine.getFile(fileName), gson);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not open the task store", e);
+                setReadOnly("the task store is open in another instance of Fini");
+                return new InMemoryStorageEngine();
+            }
+        } else if (engineName.equalsIgnoreCase(ENGINE_MEMORY)) {
+            return new InMemoryStorageEngine();
+        } else {
+            return new JournaledFileEngine();
+        }
+    }
+
+    private boolean isFileEngine() {
+        return engine instanceof JournaledFileEngine;
+    }
+
+    // ================================================================
+    // stop saving changes, e.g. when the tasks could not be read. The
+    // app keeps running with the tasks it has, and nothing on disk is
+    // changed, so the files are still there once the cause is fixed
+    // ================================================================
+    private void setReadOnly(String reason) {
+        logger.log(Level.SEVERE, "Changes will not be saved, " + reason);
+        // the first reason is the cause, e.g. a key file that could not be
+        // read comes before a save file that could not be opened
+        if (readOnlyReason == null) {
+            readOnlyReason = reason;
+        }
+    }
+
+    public boolean isReadOnly() {
+        return readOnlyReason != null;
+    }
+
+    // ================================================================
+    // get why changes are not saved, or null if they are
+    // ================================================================
+    public String getReadOnlyReason() {
+        return readOnlyReason;
+    }
+
+    // ================================================================
+    // create the manager that takes backups in the background
+    // ================================================================
+    private BackupManager createBackupManager() {
+        int generations = getIntSetting(SETTING_BACKUP_GENERATIONS, DEFAULT_BACKUP_GENERATIONS);
+        int mutationsPerBackup = getIntSetting(SETTING_BACKUP_EVERY, DEFAULT_BACKUP_EVERY);
+        int intervalMinutes = getIntSetting(SETTING_BACKUP_INTERVAL, DEFAULT_BACKUP_INTERVAL);
+        return new BackupManager(saveFile, backupFile, generations, mutationsPerBackup,
+                                 intervalMinutes, file -> {
+            RecoveredTasks recovered = recoverSavedTasks(file, null);
+            return recovered != null && recovered.isComplete();
+        });
+    }
+
+    // ================================================================
+    // get a number setting, falling back to the default if it is not one
+    // ================================================================
+    private int getIntSetting(String key, String defaultValue) {
+        try {
+            return Integer.parseInt(getSetting(key, defaultValue));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    // ================================================================
+    // create the queue that writes to disk in the background
+    // ================================================================
+    private WriteBehindQueue createWriteQueue() {
+        WriteBehindQueue.FlushPolicy flushPolicy;
+        long flushDelay;
+        try {
+            flushPolicy = WriteBehindQueue.FlushPolicy.valueOf(
+                    getSetting(SETTING_FLUSH_POLICY, DEFAULT_FLUSH_POLICY).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            flushPolicy = WriteBehindQueue.FlushPolicy.valueOf(DEFAULT_FLUSH_POLICY);
+        }
+        try {
+            flushDelay = Long.parseLong(getSetting(SETTING_FLUSH_DELAY, DEFAULT_FLUSH_DELAY));
+        } catch (NumberFormatException e) {
+            flushDelay = Long.parseLong(DEFAULT_FLUSH_DELAY);
+        }
+        return new WriteBehindQueue(tasks -> engine.replaceAll(tasks),
+                                    entries -> engine.commit(entries),
+                                    flushPolicy, flushDelay);
+    }
+
     // ================================================================
     // create the file if not found
     // ================================================================
@@ -100,86 +431,480 @@ public class Storage {
     }
 
     // ================================================================
-    // Update necessary files
+    // get the journal that belongs to a save file
+    // ================================================================
+    private File getJournalFile(String fileName) {
+        return new File(fileName + JOURNAL_FILE_SUFFIX);
+    }
+
+    // ================================================================
+    // get the journal that is being compacted into a new snapshot
+    // ================================================================
+    private File getPendingJournalFile(String fileName) {
+        return new File(fileName + PENDING_JOURNAL_FILE_SUFFIX);
+    }
+
+    // ================================================================
+    // Queue a full snapshot of the tasks. It is written in the background
     // ================================================================
     public Boolean updateFiles(ArrayList<Task> input) {
-        Boolean hasUpdatedSaveFile = false;
-        Boolean hasUpdatedBackup = false;
+        if (isReadOnly()) {
+            return false;
+        }
+        ArrayList<Task> tasks = new ArrayList<Task>(input);
+        synchronized (knownTasks) {
+            knownTasks.clear();
+            knownTasks.putAll(toTaskMap(tasks));
+        }
+        writeQueue.enqueueSnapshot(tasks);
+        return true;
+    }
+
+    // ================================================================
+    // Journal the tasks that were added, removed or changed. The
+    // records are written in the background
+    // ================================================================
+    public Boolean addTasks(List<Task> tasks) {
+        if (isReadOnly()) {
+            return false;
+        }
+        writeQueue.enqueueEntries(createEntries(JournalEntry.Type.ADD, tasks));
+        return true;
+    }
 
-        hasUpdatedSaveFile = writeTasksToFile(saveFile, input);
-        backupFile.setWritable(true);
-        hasUpdatedBackup = writeTasksToFile(backupFile, input);
-        backupFile.setWritable(false);
+    public Boolean removeTasks(List<Task> tasks) {
+        if (isReadOnly()) {
+            return false;
+        }
+        writeQueue.enqueueEntries(createEntries(JournalEntry.Type.REMOVE, tasks));
+        return true;
+    }
 
-        if (hasUpdatedSaveFile && hasUpdatedBackup) {
-            return true;
-        } else {
+    public Boolean updateTasks(List<Task> tasks) {
+        if (isReadOnly()) {
             return false;
         }
+        writeQueue.enqueueEntries(createEntries(JournalEntry.Type.UPDATE, tasks));
+        return true;
     }
 
     // ================================================================
-    // writes all task objects in the list to the save file
+    // Write what is queued and let go of the files, before the app exits
     // ================================================================
-    private Boolean writeTasksToFile(File fileName, ArrayList<Task> input) {
+    public void close() {
+        flush();
+        waitForCompaction();
+        if (watcher != null) {
+            watcher.stop();
+            journalWatcher.stop();
+        }
+        engine.close();
+    }
+
+    // ================================================================
+    // Wait until all queued writes are on disk, false if one failed. It
+    // stays queued and is tried again
+    // ================================================================
+    public Boolean flush() {
+        return writeQueue.flush();
+    }
+
+    // ================================================================
+    // check if the last write failed, so changes are not saved yet
+    // ================================================================
+    public boolean hasFailedWrites() {
+        return writeQueue.hasFailedWrites();
+    }
+
+    // ================================================================
+    // journal entries for the tasks. Tasks do not change once built, so
+    // the writer thread shares them with the FX thread without copies
+    // ================================================================
+    private ArrayList<JournalEntry> createEntries(JournalEntry.Type type, List<Task> tasks) {
+        ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+        for (Task task : tasks) {
+            entries.add(new JournalEntry(type, task));
+        }
+        synchronized (knownTasks) {
+            for (JournalEntry entry : entries) {
+                Journal.applyEntry(knownTasks, entry);
+            }
+        }
+        return entries;
+    }
+
+    // ================================================================
+    // write a full snapshot and clear the journal (writer thread)
+    // ================================================================
+    private Boolean writeFullSnapshot(ArrayList<Task> input) {
+        if (isReadOnly()) {
+            return false;
+        }
+        synchronized (snapshotLock) {
+            saveFileLock.acquire();
+            try {
+                if (!writeSnapshot(saveFile, input)) {
+                    return false;
+                }
+                getPendingJournalFile(saveFileName).delete();
+                backups.recordMutations(1);
+                // records another instance appended are not in the snapshot
+                Boolean isDropped = journal.dropRecordsBefore(knownJournalLength);
+                knownJournalLength = 0;
+                return isDropped;
+            } finally {
+                saveFileLock.release();
+            }
+        }
+    }
+
+    // ================================================================
+    // append records to the journal (writer thread)
+    // ================================================================
+    private Boolean appendToJournal(List<JournalEntry> entries) {
+        Boolean isAppended;
+        saveFileLock.acquire();
         try {
-            writer = new PrintWriter(fileName, "UTF-8");
-            for (Task task : input) {
-                writer.println(taskToJson(task));
+            long lengthBefore = journal.getFile().length();
+            isAppended = journal.append(entries);
+            // otherwise another instance appended in between, and its
+            // records still have to be read
+            if (isAppended && lengthBefore == knownJournalLength) {
+                knownJournalLength = journal.getFile().length();
             }
-        } catch (FileNotFoundException | UnsupportedEncodingException e) {
-            e.printStackTrace();
+        } finally {
+            saveFileLock.release();
+        }
+        if (!isAppended) {
             return false;
         }
-        writer.close();
+        backups.recordMutations(entries.size());
+        compactIfNeeded();
         return true;
     }
 
     // ================================================================
-    // converts task object to string
+    // start a background compaction once the journal grows too large.
+    // The journal is renamed so that new records go to a fresh file
+    // while the old records are folded into the snapshot.
+    // ================================================================
+    private void compactIfNeeded() {
+        if (journal.getRecordCount() < COMPACTION_RECORD_LIMIT
+                && journal.getFile().length() < COMPACTION_SIZE_LIMIT) {
+            return;
+        }
+        if (compaction != null && !compaction.isDone()) {
+            return;
+        }
+        File pendingJournal = getPendingJournalFile(saveFileName);
+        saveFileLock.acquire();
+        try {
+            // records of another instance are read before they are compacted
+            if (pendingJournal.exists() || journal.getFile().length() != knownJournalLength
+                    || !journal.rotateTo(pendingJournal)) {
+                return;
+            }
+            knownJournalLength = 0;
+        } finally {
+            saveFileLock.release();
+        }
+        File snapshot = saveFile;
+        File backup = backupFile;
+        compaction = compactionExecutor.submit(
+                () -> compactJournal(snapshot, backup, pendingJournal));
+    }
+
+    // ================================================================
+    // fold the pending journal into a new snapshot (compaction thread)
     // ================================================================
-    private Object taskToJson(Task task) {
-        return gson.toJson(task);
+    private void compactJournal(File snapshot, File backup, File pendingJournal) {
+        if (isReadOnly()) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            // a full snapshot may have been written in the meantime
+            if (!pendingJournal.exists()) {
+                return;
+            }
+            saveFileLock.acquire();
+            try {
+                LinkedHashMap<Long, Task> tasksById = toTaskMap(
+                        readSnapshot(snapshot, backup).getTasks());
+                openJournal(pendingJournal).replay(tasksById);
+                ArrayList<Task> tasks = new ArrayList<Task>(tasksById.values());
+
+                if (writeSnapshot(snapshot, tasks)) {
+                    pendingJournal.delete();
+                }
+            } finally {
+                saveFileLock.release();
+            }
+        }
+    }
+
+    // ================================================================
+    // wait for a running compaction to finish
+    // ================================================================
+    private void waitForCompaction() {
+        if (compaction == null) {
+            return;
+        }
+        try {
+            compaction.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
     }
 
     // ================================================================
-    // select file to read
+    // writes the snapshot to a temporary file and then swaps it in, so
+    // readers never see a half written snapshot
+    // ================================================================
+    private Boolean writeSnapshot(File fileName, ArrayList<Task> input) {
+        File tempFile = new File(fileName.getPath() + TEMP_FILE_SUFFIX);
+        saveFileLock.acquire();
+        try {
+            if (!writeTasksToFile(tempFile, input)) {
+                return false;
+            }
+            Files.move(tempFile.toPath(), fileName.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            if (watcher != null && fileName.equals(saveFile)) {
+                watcher.recordOwnWrite();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            saveFileLock.release();
+        }
+    }
+
+    // ================================================================
+    // writes all task objects in the list to the save file
+    // ================================================================
+    private Boolean writeTasksToFile(File fileName, ArrayList<Task> input) {
+        try {
+            codec.write(fileName, input);
+            return true;
+        } catch (IOException | JsonIOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // ================================================================
+    // select file to read and replay the journal on top of it
     // ================================================================
     public ArrayList<Task> readFile() {
+        if (!isFileEngine()) {
+            return readEngine();
+        }
         ArrayList<Task> storage;
-        storage = readSavedTasks(saveFile);
-        if (storage == null || storage.isEmpty()) {
-            storage = readSavedTasks(backupFile);
-            if (storage == null || storage.isEmpty()) {
-                storage = new ArrayList<Task>();
-            } else if (!storage.isEmpty()) {
-            	// Logger
+        flush();
+        waitForCompaction();
+        // never replace an encrypted save file that could not be opened, and
+        // do not fall back to a backup that may be older
+        RecoveredTasks recovered;
+        if (cipher == null && EncryptedTaskCodec.isEncryptedFile(saveFile)) {
+            setReadOnly("the save file is encrypted and there is no key to open it");
+            recovered = new RecoveredTasks(new ArrayList<Task>(), new ArrayList<String>());
+        } else {
+            recovered = readSnapshot(saveFile, backupFile);
+        }
+        skippedRecords = new ArrayList<String>(recovered.getSkippedRecords());
+        tasksFromBackup = recovered.getTasksFromBackup();
+        storage = recovered.getTasks();
+
+        boolean hasAssignedFields = false;
+        for (Task task : storage) {
+            hasAssignedFields |= task.assignTaskIdIfMissing();
+        }
+        LinkedHashMap<Long, Task> tasksById = toTaskMap(storage);
+        File pendingJournal = getPendingJournalFile(saveFileName);
+        Journal pending = openJournal(pendingJournal);
+        pending.replay(tasksById);
+        skippedRecords.addAll(pending.getSkippedRecords());
+        saveFileLock.acquire();
+        try {
+            journal.setAcceptsLegacyRecords(isMigratingToCipher());
+            journal.replay(tasksById);
+            knownJournalLength = journal.getFile().length();
+        } finally {
+            saveFileLock.release();
+        }
+        skippedRecords.addAll(journal.getSkippedRecords());
+        storage = new ArrayList<Task>(tasksById.values());
+        for (Task task : storage) {
+            hasAssignedFields |= task.assignCompletedDateIfMissing();
+        }
+
+        int numTasks = storage.size();
+        if (isReadOnly()) {
+            synchronized (knownTasks) {
+                knownTasks.clear();
+                knownTasks.putAll(toTaskMap(storage));
             }
+            return storage;
+        }
+        storage = archiveCompletedTasks(storage);
+
+        // save files from older versions miss task ids and completion
+        // dates, a compaction may have been cut short when the app last
+        // closed, the format setting may have changed since the file was
+        // written, encryption has just been turned on, tasks have just been
+        // archived, or damaged records were skipped
+        if (hasAssignedFields || pendingJournal.exists() || isInOtherFormat(saveFile)
+                || isMigratingToCipher() || storage.size() != numTasks
+                || !recovered.isComplete()) {
+            writeFullSnapshot(storage);
+        }
+        // plain records appended from now on were not written by Fini
+        journal.setAcceptsLegacyRecords(isMigratingToCipher());
+        if (!backupFile.exists()) {
+            backups.requestBackup();
+        }
+        synchronized (knownTasks) {
+            knownTasks.clear();
+            knownTasks.putAll(toTaskMap(storage));
         }
         return storage;
     }
 
     // ================================================================
-    // reads tasks in the file
+    // read the tasks from an engine that does not use the save file.
+    // Tasks are not archived there
     // ================================================================
-    private ArrayList<Task> readSavedTasks(File saveFile) {
-        ArrayList<Task> storageData;
-        String text = "";
-        storageData = new ArrayList<Task>();
+    private ArrayList<Task> readEngine() {
+        flush();
+        ArrayList<Task> storage = engine.scan();
+        boolean hasAssignedFields = false;
+        for (Task task : storage) {
+            hasAssignedFields |= task.assignTaskIdIfMissing();
+            hasAssignedFields |= task.assignCompletedDateIfMissing();
+        }
+        if (hasAssignedFields && !isReadOnly()) {
+            writeQueue.enqueueSnapshot(new ArrayList<Task>(storage));
+        }
+        synchronized (knownTasks) {
+            knownTasks.clear();
+            knownTasks.putAll(toTaskMap(storage));
+        }
+        return storage;
+    }
 
-        try {
-            if (!initBufferedReader(saveFile)) {
-                return storageData;
+    // ================================================================
+    // get the damaged records that the last readFile() had to skip, in
+    // the save file and the journal
+    // ================================================================
+    public ArrayList<String> getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    // ================================================================
+    // get how many tasks the last readFile() took from the backup in
+    // place of damaged records
+    // ================================================================
+    public int getTasksFromBackup() {
+        return tasksFromBackup;
+    }
+
+    // ================================================================
+    // read the snapshot record by record. If records are damaged, only
+    // the tasks missing around them are taken from the backup, and the
+    // backup is read no further than the last of them. An unreadable
+    // snapshot is replaced by the whole backup. An empty one is kept, as
+    // snapshots are written atomically and the backup may be older
+    // ================================================================
+    private RecoveredTasks readSnapshot(File snapshot, File backup) {
+        RecoveredTasks recovered = recoverSavedTasks(snapshot, null);
+        if (recovered == null) {
+            RecoveredTasks fromBackup = recoverSavedTasks(backup, null);
+            if (fromBackup != null && !fromBackup.getTasks().isEmpty()) {
+                logger.log(Level.WARNING, "Save file is unreadable, loaded the backup instead");
+                recovered = fromBackup;
             }
-            while ((text = reader.readLine()) != null) {
-                Task task = gson.fromJson(text, Task.class);
-                storageData.add(task);
+        } else if (!recovered.isComplete()) {
+            RecoveredTasks fromBackup = recoverSavedTasks(backup, recovered.getLastGapEnd());
+            if (fromBackup != null) {
+                int filled = recovered.fillGapsFrom(fromBackup);
+                logger.log(Level.WARNING, "Took " + filled + " tasks from the backup");
             }
-        } catch (IOException | JsonSyntaxException e) {
+        }
+        if (recovered == null) {
+            return new RecoveredTasks(new ArrayList<Task>(), new ArrayList<String>());
+        }
+        for (String skippedRecord : recovered.getSkippedRecords()) {
+            logger.log(Level.WARNING, "Skipped damaged record in " + snapshot + ", " + skippedRecord);
+        }
+        return recovered;
+    }
+
+    // ================================================================
+    // check if encryption has been turned on, and the save file and the
+    // journals still hold tasks from before, which are plain or sealed
+    // without their place in the file
+    // ================================================================
+    private boolean isMigratingToCipher() {
+        return cipher != null && !EncryptedTaskCodec.isCurrentVersion(saveFile);
+    }
+
+    // ================================================================
+    // open a journal of the save file for reading
+    // ================================================================
+    private Journal openJournal(File journalFile) {
+        Journal journal = new Journal(journalFile, gson, cipher);
+        journal.setAcceptsLegacyRecords(isMigratingToCipher());
+        return journal;
+    }
+
+    // ================================================================
+    // check if a non-empty file is not in the format from the settings
+    // ================================================================
+    private Boolean isInOtherFormat(File file) {
+        return file.length() > 0 && getCodecOfFile(file) != codec;
+    }
+
+    // ================================================================
+    // key the tasks by id, keeping their order
+    // ================================================================
+    private LinkedHashMap<Long, Task> toTaskMap(ArrayList<Task> tasks) {
+        LinkedHashMap<Long, Task> tasksById = new LinkedHashMap<Long, Task>();
+        for (Task task : tasks) {
+            tasksById.put(task.getTaskId(), task);
+        }
+        return tasksById;
+    }
+
+    // ================================================================
+    // reads tasks in the file, null if it is damaged
+    // ================================================================
+    private ArrayList<Task> readSavedTasks(File saveFile) {
+        if (!saveFile.exists()) {
+            return new ArrayList<Task>();
+        }
+        try {
+            return getCodecOfFile(saveFile).read(saveFile);
+        } catch (IOException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    // ================================================================
+    // reads the intact records in the file, null if it cannot be read
+    // ================================================================
+    private RecoveredTasks recoverSavedTasks(File saveFile, Long stopAfterTaskId) {
+        if (!saveFile.exists()) {
+            return new RecoveredTasks(new ArrayList<Task>(), new ArrayList<String>());
+        }
+        try {
+            return getCodecOfFile(saveFile).recover(saveFile, stopAfterTaskId);
+        } catch (IOException e) {
+            e.printStackTrace();
             return null;
         }
-        closeBufferedReader();
-        return storageData;
     }
 
     // ================================================================
@@ -206,24 +931,188 @@ public class Storage {
     }
 
     // ================================================================
-    // move the save file
+    // get the directory that holds the archive of a save file
+    // ================================================================
+    private File getArchiveDirectory(String fileName) {
+        return new File(fileName + ARCHIVE_DIRECTORY_SUFFIX);
+    }
+
+    // ================================================================
+    // get the archive file of the month a task was completed in
+    // ================================================================
+    private File getArchiveFile(Task task) {
+        YearMonth month = YearMonth.from(task.getCompletedDate());
+        return new File(getArchiveDirectory(saveFileName), month + ARCHIVE_FILE_SUFFIX);
+    }
+
+    // ================================================================
+    // move tasks completed more than archiveAfterDays ago out of the
+    // save file into the archive. Returns the tasks that stay
+    // ================================================================
+    private ArrayList<Task> archiveCompletedTasks(ArrayList<Task> tasks) {
+        if (archiveAfterDays < 0) {
+            return tasks;
+        }
+        LocalDate archiveBefore = LocalDate.now().minusDays(archiveAfterDays);
+        HashMap<File, ArrayList<Task>> tasksByArchiveFile = new HashMap<File, ArrayList<Task>>();
+        for (Task task : tasks) {
+            if (task.isCompleted() && task.getCompletedDate().isBefore(archiveBefore)) {
+                tasksByArchiveFile.computeIfAbsent(getArchiveFile(task),
+                                                   file -> new ArrayList<Task>()).add(task);
+            }
+        }
+
+        HashSet<Task> archivedTasks = new HashSet<Task>();
+        for (Map.Entry<File, ArrayList<Task>> entry : tasksByArchiveFile.entrySet()) {
+            File archiveFile = entry.getKey();
+            archiveFile.getParentFile().mkdirs();
+            ArrayList<Task> archive = readSavedTasks(archiveFile);
+            if (archive == null) {
+                // never overwrite a damaged archive file
+                continue;
+            }
+            LinkedHashMap<Long, Task> archiveById = toTaskMap(archive);
+            for (Task task : entry.getValue()) {
+                archiveById.put(task.getTaskId(), task);
+            }
+            if (writeSnapshot(archiveFile, new ArrayList<Task>(archiveById.values()))) {
+                archivedTasks.addAll(entry.getValue());
+            }
+        }
+
+        ArrayList<Task> remainingTasks = new ArrayList<Task>();
+        for (Task task : tasks) {
+            if (!archivedTasks.contains(task)) {
+                remainingTasks.add(task);
+            }
+        }
+        return remainingTasks;
+    }
+
+    // ================================================================
+    // read all archived tasks, oldest month first
+    // ================================================================
+    public ArrayList<Task> readArchive() {
+        ArrayList<Task> archivedTasks = new ArrayList<Task>();
+        File[] archiveFiles = getArchiveDirectory(saveFileName).listFiles(
+                (directory, name) -> name.endsWith(ARCHIVE_FILE_SUFFIX));
+        if (archiveFiles == null) {
+            return archivedTasks;
+        }
+        Arrays.sort(archiveFiles);
+        for (File archiveFile : archiveFiles) {
+            ArrayList<Task> archive = readSavedTasks(archiveFile);
+            if (archive != null) {
+                archivedTasks.addAll(archive);
+            }
+        }
+        return archivedTasks;
+    }
+
+    // ================================================================
+    // bring archived tasks back into the save file, e.g. before they
+    // are edited. They are journaled first so they cannot get lost
+    // ================================================================
+    public Boolean restoreFromArchive(List<Task> tasks) {
+        if (isReadOnly()) {
+            return false;
+        }
+        addTasks(tasks);
+        flush();
+
+        HashMap<File, HashSet<Long>> idsByArchiveFile = new HashMap<File, HashSet<Long>>();
+        for (Task task : tasks) {
+            idsByArchiveFile.computeIfAbsent(getArchiveFile(task),
+                                             file -> new HashSet<Long>()).add(task.getTaskId());
+        }
+        Boolean isRestored = true;
+        for (Map.Entry<File, HashSet<Long>> entry : idsByArchiveFile.entrySet()) {
+            File archiveFile = entry.getKey();
+            ArrayList<Task> archive = readSavedTasks(archiveFile);
+            if (archive == null) {
+                isRestored = false;
+                continue;
+            }
+            archive.removeIf(task -> entry.getValue().contains(task.getTaskId()));
+            if (archive.isEmpty()) {
+                isRestored &= archiveFile.delete();
+            } else {
+                isRestored &= writeSnapshot(archiveFile, archive);
+            }
+        }
+        return isRestored;
+    }
+
+    // ================================================================
+    // move the save file with its journal and archive. Files on another
+    // file system are copied and checked before the originals go. The
+    // settings only point to the new file once all of them have moved
     // ================================================================
     public Boolean moveSaveFileDirectory(String input) {
-        saveFileName = input;
-        if (saveFile.renameTo(new File(saveFileName))) {
+        if (isReadOnly()) {
+            return false;
+        }
+        flush();
+        waitForCompaction();
+        Boolean isMoved = engine.moveTo(input);
+        if (isMoved) {
+            saveFileName = input;
+            saveFile = new File(input);
             updateSettingsFile(saveFileName);
-            saveFile = new File(saveFileName);
-            createIfMissingFile(saveFile);
-            return true;
-        } else {
+        }
+        return isMoved;
+    }
+
+    // Moves the files of the file engine and switches over to them. The
+    // archive and the journal go first, and if any file cannot be moved
+    // the ones that were are moved back, so the old files stay complete
+    private Boolean moveSaveFiles(String input) {
+        if (getPendingJournalFile(saveFileName).exists()) {
+            return false;
+        }
+        // the old save file disappears, which is not a change by another program
+        if (watcher != null) {
+            watcher.stop();
+        }
+        File oldArchiveDirectory = getArchiveDirectory(saveFileName);
+        File newArchiveDirectory = getArchiveDirectory(input);
+        File oldJournal = journal.getFile();
+        File newSaveFile = new File(input);
+        boolean isMoved = false;
+        if (FileMover.moveDirectory(oldArchiveDirectory, newArchiveDirectory)) {
+            if (journal.moveTo(getJournalFile(input))) {
+                isMoved = FileMover.move(saveFile, newSaveFile);
+                if (!isMoved && !journal.moveTo(oldJournal)) {
+                    logger.log(Level.SEVERE, "Could not move the journal back to " + oldJournal);
+                }
+            }
+            if (!isMoved && !FileMover.moveDirectory(newArchiveDirectory, oldArchiveDirectory)) {
+                logger.log(Level.SEVERE, "Could not move the archive back to "
+                        + oldArchiveDirectory);
+            }
+        } else if (!FileMover.moveDirectory(newArchiveDirectory, oldArchiveDirectory)) {
+            // some of the archive files may have moved
+            logger.log(Level.SEVERE, "Could not move the archive back to " + oldArchiveDirectory);
+        }
+        if (!isMoved) {
+            startWatcher();
             return false;
         }
+        saveFileName = input;
+        saveFile = newSaveFile;
+        backups.setSnapshotFile(saveFile);
+        saveFileLock.delete();
+        saveFileLock = new SaveFileLock(saveFileName);
+        startWatcher();
+        return true;
     }
 
     // ================================================================
     // set a specific file as the save file
     // ================================================================
     public Boolean setSaveFileDirectory(String input) {
+        flush();
+        waitForCompaction();
         saveFileName = input;
         File setFile = new File(saveFileName);
         if (setFile.equals(saveFile)) {
@@ -231,16 +1120,293 @@ public class Storage {
         } else if (setFile.exists()) {
             updateSettingsFile(saveFileName);
             saveFile = setFile;
+            backups.setSnapshotFile(saveFile);
+            // the old save file stays, but this instance no longer writes it
+            saveFileLock.delete();
+            saveFileLock = new SaveFileLock(saveFileName);
+            journal = new Journal(getJournalFile(saveFileName), gson, cipher);
+            // readFile() reads all of it before the controller goes on
+            knownJournalLength = journal.getFile().length();
+            engine.close();
+            // the new file may well be writable, readFile() checks it again
+            readOnlyReason = null;
+            if (cipher == null && hasKeyFile()) {
+                setReadOnly("the key file could not be read");
+            }
+            engine = createEngine(saveFileName);
+            // only the file engine is watched
+            startWatcher();
             return true;
         } else {
             return false;
         }
     }
 
+    // ================================================================
+    // watch the save file for changes made by other programs, such as
+    // scripts or another instance. Changed tasks are passed to the
+    // listener on the watcher thread
+    // ================================================================
+    public void watchSaveFile(Consumer<List<JournalEntry>> listener) {
+        externalChangeListener = listener;
+        startWatcher();
+    }
+
+    private void startWatcher() {
+        if (watcher != null) {
+            watcher.stop();
+            journalWatcher.stop();
+        }
+        if (externalChangeListener == null || !isFileEngine()) {
+            return;
+        }
+        watcher = new SaveFileWatcher(saveFile, new SaveFileWatcher.Listener() {
+            @Override
+            public void fileAppended(long offset) {
+                loadAppendedTasks(offset);
+            }
+
+            @Override
+            public void fileRewritten() {
+                loadChangedTasks();
+            }
+        });
+        watcher.start();
+        // another instance only appends to the journal, so the save file
+        // does not change. Own appends are reported too, but they are
+        // within knownJournalLength
+        journalWatcher = new SaveFileWatcher(journal.getFile(), new SaveFileWatcher.Listener() {
+            @Override
+            public void fileAppended(long offset) {
+                loadJournalRecords();
+            }
+
+            @Override
+            public void fileRewritten() {
+                loadJournalRecords();
+            }
+        });
+        journalWatcher.start();
+    }
+
+    // ================================================================
+    // read only the lines that were appended (watcher thread)
+    // ================================================================
+    private void loadAppendedTasks(long offset) {
+        RecoveredTasks appended = null;
+        if (getCodecOfFile(saveFile) == jsonCodec) {
+            try {
+                appended = jsonCodec.recoverFrom(saveFile, offset);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (appended == null || !appended.isComplete()) {
+            // e.g. a binary file or a series header further up
+            loadChangedTasks();
+            return;
+        }
+        applyExternalChanges(appended.getTasks(), false);
+    }
+
+    // ================================================================
+    // read the whole file and replay the journal on it (watcher thread)
+    // ================================================================
+    private void loadChangedTasks() {
+        flush();
+        waitForCompaction();
+        ArrayList<Task> tasks;
+        synchronized (snapshotLock) {
+            saveFileLock.acquire();
+            try {
+                tasks = engine.scan();
+                knownJournalLength = journal.getFile().length();
+            } finally {
+                saveFileLock.release();
+            }
+        }
+        applyExternalChanges(tasks, true);
+    }
+
+    // ================================================================
+    // read the journal records that another instance appended (watcher
+    // thread). Own records that are queued are written first, so the
+    // last record of each task is the one a restart would replay
+    // ================================================================
+    private void loadJournalRecords() {
+        flush();
+        ArrayList<JournalEntry> entries;
+        saveFileLock.acquire();
+        try {
+            long length = journal.getFile().length();
+            if (length == knownJournalLength) {
+                return;
+            }
+            if (length < knownJournalLength) {
+                // emptied or replaced by another program
+                entries = null;
+            } else {
+                entries = journal.readFrom(knownJournalLength);
+                knownJournalLength = journal.getReadEnd();
+            }
+        } finally {
+            saveFileLock.release();
+        }
+        if (entries == null) {
+            loadChangedTasks();
+            return;
+        }
+        LinkedHashMap<Long, JournalEntry> lastEntries = new LinkedHashMap<Long, JournalEntry>();
+        for (JournalEntry entry : entries) {
+            lastEntries.remove(entry.getTaskId());
+            lastEntries.put(entry.getTaskId(), entry);
+        }
+        applyExternalEntries(lastEntries.values());
+    }
+
+    // ================================================================
+    // compare the tasks read from the file with the known tasks and pass
+    // on the ones that differ. Tasks added without an id get one, and
+    // the file is rewritten so they keep it
+    // ================================================================
+    private void applyExternalChanges(List<Task> tasks, boolean isWholeFile) {
+        ArrayList<JournalEntry> changes = new ArrayList<JournalEntry>();
+        boolean hasAssignedIds = false;
+        synchronized (knownTasks) {
+            HashSet<Long> readIds = new HashSet<Long>();
+            for (Task task : tasks) {
+                hasAssignedIds |= task.assignTaskIdIfMissing();
+                task.assignCompletedDateIfMissing();
+                readIds.add(task.getTaskId());
+                Task knownTask = knownTasks.get(task.getTaskId());
+                if (knownTask == null) {
+                    changes.add(new JournalEntry(JournalEntry.Type.ADD, task));
+                } else if (!gson.toJson(knownTask, Task.class).equals(gson.toJson(task, Task.class))) {
+                    changes.add(new JournalEntry(JournalEntry.Type.UPDATE, task));
+                }
+            }
+            if (isWholeFile) {
+                for (Task knownTask : knownTasks.values()) {
+                    if (!readIds.contains(knownTask.getTaskId())) {
+                        changes.add(new JournalEntry(JournalEntry.Type.REMOVE, knownTask));
+                    }
+                }
+            }
+            for (JournalEntry change : changes) {
+                Journal.applyEntry(knownTasks, change);
+            }
+            if (hasAssignedIds && !isReadOnly()) {
+                writeQueue.enqueueSnapshot(new ArrayList<Task>(knownTasks.values()));
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        externalChangeListener.accept(changes);
+    }
+
+    // ================================================================
+    // pass on the journal records that differ from the known tasks
+    // ================================================================
+    private void applyExternalEntries(Collection<JournalEntry> entries) {
+        ArrayList<JournalEntry> changes = new ArrayList<JournalEntry>();
+        synchronized (knownTasks) {
+            for (JournalEntry entry : entries) {
+                Task knownTask = knownTasks.get(entry.getTaskId());
+                if (entry.getType() == JournalEntry.Type.REMOVE) {
+                    if (knownTask != null) {
+                        changes.add(entry);
+                    }
+                } else if (knownTask == null) {
+                    changes.add(new JournalEntry(JournalEntry.Type.ADD, entry.getTask()));
+                } else if (!gson.toJson(knownTask, Task.class).equals(
+                        gson.toJson(entry.getTask(), Task.class))) {
+                    changes.add(new JournalEntry(JournalEntry.Type.UPDATE, entry.getTask()));
+                }
+            }
+            for (JournalEntry change : changes) {
+                Journal.applyEntry(knownTasks, change);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        externalChangeListener.accept(changes);
+    }
+
+    // ================================================================
+    // open the undo history of the save file, which keeps as many
+    // entries in memory as the settings allow
+    // ================================================================
+    public History createHistory() {
+        File historyFile = getHistoryFile();
+        if (isReadOnly()) {
+            // the history of the save file is left as it is
+            try {
+                historyFile = File.createTempFile("fini", HISTORY_FILE_SUFFIX);
+                historyFile.deleteOnExit();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not create a temporary undo history", e);
+            }
+        }
+        return new History(historyFile, undoLimit, undoStatesInMemory,
+                           1024L * undoMemoryKb, gson, cipher);
+    }
+
+    public File getHistoryFile() {
+        return new File(saveFileName + HISTORY_FILE_SUFFIX);
+    }
+
     // ================================================================
     // get the name of save file
     // ================================================================
     public String getSaveFileName() {
         return saveFileName;
     }
+
+    // ================================================================
+    // the save file with its journal, as an engine. Changes go to the
+    // journal, which is folded into the save file in the background
+    // ================================================================
+    private class JournaledFileEngine implements StorageEngine {
+        @Override
+        public ArrayList<Task> scan() {
+            synchronized (snapshotLock) {
+                ArrayList<Task> tasks = readSnapshot(saveFile, backupFile).getTasks();
+                for (Task task : tasks) {
+                    task.assignTaskIdIfMissing();
+                }
+                LinkedHashMap<Long, Task> tasksById = toTaskMap(tasks);
+                openJournal(getPendingJournalFile(saveFileName)).replay(tasksById);
+                openJournal(journal.getFile()).replay(tasksById);
+                return new ArrayList<Task>(tasksById.values());
+            }
+        }
+
+        // The save file is not indexed, so this reads all of it
+        @Override
+        public Task get(long taskId) {
+            return toTaskMap(scan()).get(taskId);
+        }
+
+        @Override
+        public Boolean commit(List<JournalEntry> entries) {
+            return appendToJournal(entries);
+        }
+
+        @Override
+        public Boolean replaceAll(ArrayList<Task> tasks) {
+            return writeFullSnapshot(tasks);
+        }
+
+        @Override
+        public Boolean moveTo(String fileName) {
+            return moveSaveFiles(fileName);
+        }
+
+        // The files are only open while they are written
+        @Override
+        public void close() {
+        }
+    }
 }
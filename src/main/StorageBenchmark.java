@@ -0,0 +1,327 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Measures the heap used per task and the bytes allocated per task by the
+ * streaming codec and by the old String-per-line code, and compares the
+ * plain, the binary and the encrypted save file, for snapshots and for
+ * journal appends. The binary load is held against its target of 5 times
+ * faster than the plain one.
+ * It uses a temporary directory and leaves the real save file alone.
+ *
+ * Usage: java main.StorageBenchmark [number of tasks]
+ */
+public class StorageBenchmark {
+    private static final int DEFAULT_TASK_COUNT = 100000;
+    private static final int APPEND_COUNT = 1000;
+    private static final int ROUNDS = 5;
+    private static final double TARGET_LOAD_SPEEDUP = 5;
+    private static final int TARGET_HEAP_SHARE = 3;
+
+    private TaskTypeAdapter taskAdapter = new TaskTypeAdapter();
+    private Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Task.class, taskAdapter)
+            .registerTypeAdapter(LocalDate.class, new LocalDateTypeAdapter())
+            .registerTypeAdapter(LocalTime.class, new LocalTimeTypeAdapter())
+            .create();
+    private File directory;
+    private String[][] measuredStrings;
+    private ArrayList<Task> measuredTasks;
+    private ArrayList<OldTask> measuredOldTasks;
+
+    // The fields of Task before it kept dates as numbers and shared the
+    // fields of a series, as a loaded task filled them in
+    private static class OldTask {
+        private long taskId;
+        private String rawInfo;
+        private Task.Type type;
+        private String description;
+        private LocalDate date;
+        private LocalTime startTime;
+        private LocalTime endTime;
+        private boolean isCompleted;
+        private LocalDate completedDate;
+        private String recurId;
+        private ArrayList<LocalDate> exceptionDates;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TASK_COUNT;
+        StorageBenchmark benchmark = new StorageBenchmark();
+        try {
+            benchmark.run(taskCount);
+        } finally {
+            benchmark.deleteDirectory();
+        }
+    }
+
+    // ================================================================
+    // Benchmarks
+    // ================================================================
+    private void run(int taskCount) throws IOException {
+        directory = Files.createTempDirectory("fini-benchmark").toFile();
+        RecordCipher cipher = RecordCipher.fromKeyFile(new File(directory, "key"));
+
+        System.out.println(taskCount + " tasks, best of " + ROUNDS + " rounds");
+        // first, while the heap holds little else
+        measureFootprint(taskCount);
+        ArrayList<Task> tasks = createTasks(taskCount);
+        compareAllocations(tasks);
+        long[] plainReads = compareSnapshots("plain", new JsonTaskCodec(taskAdapter, false), tasks);
+        long[] binaryReads = compareSnapshots("binary", new BinaryTaskCodec(false), tasks);
+        compareSnapshots("encrypted", new EncryptedTaskCodec(taskAdapter, cipher), tasks);
+        System.out.println(String.format("binary load: %.1fx faster first read, %.1fx faster best"
+                                         + " read than plain (target %.0fx)",
+                                         (double) plainReads[0] / binaryReads[0],
+                                         (double) plainReads[1] / binaryReads[1],
+                                         TARGET_LOAD_SPEEDUP));
+        compareAppends("plain", null, tasks);
+        compareAppends("encrypted", cipher, tasks);
+    }
+
+    // Returns the time of the first read, before the codec is warmed up, and
+    // of the best read, in ns
+    private long[] compareSnapshots(String name, TaskCodec codec, ArrayList<Task> tasks)
+            throws IOException {
+        File file = new File(directory, name + ".txt");
+        long bestWrite = Long.MAX_VALUE;
+        long bestRead = Long.MAX_VALUE;
+        long firstRead = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            codec.write(file, tasks);
+            long written = System.nanoTime();
+            if (codec.read(file).size() != tasks.size()) {
+                throw new IllegalStateException(name + " lost tasks");
+            }
+            long read = System.nanoTime();
+            bestWrite = Math.min(bestWrite, written - start);
+            bestRead = Math.min(bestRead, read - written);
+            if (round == 0) {
+                firstRead = read - written;
+            }
+        }
+        System.out.println(String.format("%-10s snapshot: write %6d ms, read %6d ms"
+                                         + " (first %6d ms), %9d bytes",
+                                         name, bestWrite / 1000000, bestRead / 1000000,
+                                         firstRead / 1000000, file.length()));
+        return new long[] { firstRead, bestRead };
+    }
+
+    /**
+     * Bytes allocated per task to write and read a plain save file, by
+     * JsonTaskCodec and by the code it replaced, which built a String with
+     * gson.toJson for every line and parsed every line read with
+     * gson.fromJson.
+     */
+    private void compareAllocations(ArrayList<Task> tasks) throws IOException {
+        File file = new File(directory, "allocations.txt");
+        JsonTaskCodec codec = new JsonTaskCodec(taskAdapter, false);
+        long streamingWrite = Long.MAX_VALUE;
+        long streamingRead = Long.MAX_VALUE;
+        long linesWrite = Long.MAX_VALUE;
+        long linesRead = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = getAllocatedBytes();
+            codec.write(file, tasks);
+            long written = getAllocatedBytes();
+            codec.read(file);
+            long read = getAllocatedBytes();
+            streamingWrite = Math.min(streamingWrite, written - start);
+            streamingRead = Math.min(streamingRead, read - written);
+
+            start = getAllocatedBytes();
+            writeLines(file, tasks);
+            written = getAllocatedBytes();
+            readLines(file);
+            read = getAllocatedBytes();
+            linesWrite = Math.min(linesWrite, written - start);
+            linesRead = Math.min(linesRead, read - written);
+        }
+        System.out.println(String.format("allocated per task: streaming write %d, read %d bytes;"
+                                         + " toJson/fromJson write %d, read %d bytes",
+                                         streamingWrite / tasks.size(),
+                                         streamingRead / tasks.size(),
+                                         linesWrite / tasks.size(),
+                                         linesRead / tasks.size()));
+    }
+
+    /**
+     * Like a JOL footprint, but of the whole heap, measured after a full
+     * collection: first the strings of the tasks, then the tasks and then
+     * the same tasks in the old layout, both pointing to those strings. The
+     * tasks are held against a third of the old ones, with their strings
+     * and without them.
+     */
+    private void measureFootprint(int taskCount) {
+        long before = getUsedHeap();
+        // kept in fields, so the JIT cannot let them be collected early
+        measuredStrings = new String[][] { createDescriptions(taskCount),
+                                           createRawInfos(taskCount) };
+        long strings = (getUsedHeap() - before) / taskCount;
+        before = getUsedHeap();
+        measuredTasks = createTasks(measuredStrings[0], measuredStrings[1]);
+        long tasks = (getUsedHeap() - before) / taskCount;
+        before = getUsedHeap();
+        measuredOldTasks = createOldTasks(measuredStrings[0], measuredStrings[1]);
+        long oldTasks = (getUsedHeap() - before) / taskCount;
+        System.out.println(String.format("heap per task: %d bytes, %d without its strings;"
+                                         + " old Task %d and %d (target under %d and %d)",
+                                         tasks + strings, tasks,
+                                         oldTasks + strings, oldTasks,
+                                         (oldTasks + strings) / TARGET_HEAP_SHARE,
+                                         oldTasks / TARGET_HEAP_SHARE));
+        measuredStrings = null;
+        measuredTasks = null;
+        measuredOldTasks = null;
+    }
+
+    // One open of the journal per command, as with the IMMEDIATE flush policy
+    private void compareAppends(String name, RecordCipher cipher, ArrayList<Task> tasks) {
+        File file = new File(directory, name + ".journal");
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            file.delete();
+            Journal journal = new Journal(file, gson, cipher);
+            long start = System.nanoTime();
+            for (int i = 0; i < APPEND_COUNT; i++) {
+                journal.append(Arrays.asList(new JournalEntry(JournalEntry.Type.UPDATE,
+                                                              tasks.get(i % tasks.size()))));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-10s journal:  %d appends in %d ms, %d bytes",
+                                         name, APPEND_COUNT, best / 1000000, file.length()));
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private ArrayList<Task> createTasks(int taskCount) {
+        return createTasks(createDescriptions(taskCount), createRawInfos(taskCount));
+    }
+
+    private ArrayList<Task> createTasks(String[] descriptions, String[] rawInfos) {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        LocalDate today = LocalDate.now();
+        for (int i = 0; i < descriptions.length; i++) {
+            Task task = new Task();
+            task.setTaskId(Task.generateTaskId());
+            task.setDescription(descriptions[i]);
+            task.setRawInfo(rawInfos[i]);
+            task.setType(Task.Type.TIMED);
+            task.setDate(today.plusDays(i % 365));
+            task.setStartTime(LocalTime.of(9, i % 60));
+            task.setEndTime(LocalTime.of(10, i % 60));
+            task.setIsCompleted(i % 3 == 0);
+            if (task.isCompleted()) {
+                task.setCompletedDate(today.minusDays(i % 30));
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    // The same tasks as createTasks, each with its own date and time objects
+    private ArrayList<OldTask> createOldTasks(String[] descriptions, String[] rawInfos) {
+        ArrayList<OldTask> tasks = new ArrayList<OldTask>();
+        LocalDate today = LocalDate.now();
+        for (int i = 0; i < descriptions.length; i++) {
+            OldTask task = new OldTask();
+            task.taskId = Task.generateTaskId();
+            task.description = descriptions[i];
+            task.rawInfo = rawInfos[i];
+            task.type = Task.Type.TIMED;
+            task.date = LocalDate.ofEpochDay(today.toEpochDay() + i % 365);
+            task.startTime = LocalTime.ofSecondOfDay(LocalTime.of(9, i % 60).toSecondOfDay());
+            task.endTime = LocalTime.ofSecondOfDay(LocalTime.of(10, i % 60).toSecondOfDay());
+            task.isCompleted = i % 3 == 0;
+            if (task.isCompleted) {
+                task.completedDate = LocalDate.ofEpochDay(today.toEpochDay() - i % 30);
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private String[] createDescriptions(int taskCount) {
+        String[] descriptions = new String[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            descriptions[i] = "benchmark task " + i;
+        }
+        return descriptions;
+    }
+
+    private String[] createRawInfos(int taskCount) {
+        String[] rawInfos = new String[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            rawInfos[i] = "benchmark task " + i + " at 9am in " + (i % 365) + " days";
+        }
+        return rawInfos;
+    }
+
+    private void writeLines(File file, ArrayList<Task> tasks) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            for (Task task : tasks) {
+                writer.println(gson.toJson(task));
+            }
+        }
+    }
+
+    private ArrayList<Task> readLines(File file) throws IOException {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                tasks.add(gson.fromJson(line, Task.class));
+            }
+        }
+        return tasks;
+    }
+
+    // Counts every live thread, as large files are read on the fork-join pool
+    private long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+
+    private long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void deleteDirectory() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
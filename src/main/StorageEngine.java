@@ -0,0 +1,46 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Where Storage keeps the tasks.
+ *
+ * Storage picks the engine from the "engine" setting:
+ * files:   the save file as JSON lines (or binary) with a journal, backups
+ *          and an archive. This is the default
+ * mvstore: an embedded key-value store in one file, where a single task is
+ *          written without rewriting the others
+ * memory:  nothing is written to disk, e.g. for tests and benchmarks
+ *
+ * Changes are made in batches of journal entries, which an engine applies
+ * together. Engines are only called from one thread at a time.
+ */
+public interface StorageEngine {
+    // Gets every task, in the order they were added
+    public ArrayList<Task> scan();
+
+    // Gets one task, or null if there is none with the id
+    public Task get(long taskId);
+
+    // Applies the changes together
+    public Boolean commit(List<JournalEntry> entries);
+
+    // Replaces all tasks with the given ones
+    public Boolean replaceAll(ArrayList<Task> tasks);
+
+    // Moves the data to where a save file with the given name keeps it
+    public Boolean moveTo(String saveFileName);
+
+    public void close();
+
+    // Adds the task, or replaces the task with the same id
+    public default Boolean put(Task task) {
+        return commit(Arrays.asList(new JournalEntry(JournalEntry.Type.UPDATE, task)));
+    }
+
+    public default Boolean delete(long taskId) {
+        return commit(Arrays.asList(new JournalEntry(taskId)));
+    }
+}
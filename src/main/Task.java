@@ -7,6 +7,10 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -31,13 +35,18 @@ import org.apache.commons.lang.StringUtils;
  *
  * Getters: getRawInfo(), getType(), getDescription(), getDate(),
  * getStartTime(), getEndTime(), isCompleted(), isOverdue(), getId(),
- * isRecurring(), getExceptionDates(), getFormattedTimeAndDate(boolean)
+ * getTaskId(), getCompletedDate(), isRecurring(), getExceptionDates(),
+ * getFormattedTimeAndDate(boolean)
  *
- * Setters: setDescription(String), setDate(LocalDate), setTime(LocalTime,
- * LocalTime), markAsComplete(), markAsIncomplete(), setId(String), setRawInfo(String),
- * setException(ArrayList<LocalDate>)
+ * Changes: withCompleted(), withIncomplete(), withException(LocalDate),
+ * withException(List<Task>, LocalDate)
+ *
+ * A task does not change once it is built. The with methods return a changed
+ * copy with the same task id, so tasks can be shared between the task list,
+ * undo states, the display and the writer thread without being cloned. The
+ * package-private setters are only used while a task is built or loaded.
  */
-public class Task implements Cloneable {
+public class Task {
     public static enum Type {
         FLOATING, DEADLINE, TIMED
     };
@@ -53,66 +62,111 @@ public class Task implements Cloneable {
     private static final String[] KEYWORDS = { "by", "on", "at", "from",
             "until", "till" , "except"};
     
+    private static final Type[] TYPES = Type.values();
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final int NO_TIME = -1;
+    private static final int FLAGS_TYPE = 0x03; // 0 for no type, else ordinal + 1
+    private static final int FLAG_COMPLETED = 0x04;
+
+    // Dates are kept as epoch days and times as seconds of the day, and the
+    // type and completion share one byte, so that a task is a single small
+    // object. The getters turn them back into LocalDate, LocalTime and Type.
+    // The instances of a series point to one TaskSeries, and rawInfo and
+    // description are only set here when they differ from the series
+    private long taskId;
     private String rawInfo;
-    private Type type;
     private String description; // arguments without the date and time
-    private LocalDate date;
-    private LocalTime startTime;
-    private LocalTime endTime;
-    private boolean isCompleted;
-    private String recurId;
-    private ArrayList<LocalDate> exceptionDates;
+    private int date = NO_DATE;
+    private int startTime = NO_TIME;
+    private int endTime = NO_TIME;
+    private int completedDate = NO_DATE;
+    private byte flags;
+    private TaskSeries series;
+
+    // Used by TaskTypeAdapter when loading a saved task
+    Task() {
+    }
+
+    // Used by the with methods
+    private Task(Task task) {
+        taskId = task.taskId;
+        rawInfo = task.rawInfo;
+        description = task.description;
+        date = task.date;
+        startTime = task.startTime;
+        endTime = task.endTime;
+        completedDate = task.completedDate;
+        flags = task.flags;
+        series = task.series;
+    }
 
     public Task(String input, ArrayList<LocalDateTime> parsedDates,
                 String parsedWords, String notParsedWords) {
-        markAsIncomplete();
-        rawInfo = input;
-        type = determineType(parsedDates);
-        initDateAndTime(type, parsedDates);
-        description = extractDescription(notParsedWords);
-        while (description.substring(description.length() - 1).equals(STRING_EMPTY_SPACE)) {
-            description = description.trim();
-        }
+        initTask(parsedDates);
+        setRawInfo(input);
+        setDescription(createDescription(notParsedWords));
+    }
+
+    // An instance of a recurring series, sharing the data of the series
+    Task(TaskSeries series, ArrayList<LocalDateTime> parsedDates) {
+        initTask(parsedDates);
+        this.series = series;
     }
 
     // ================================================================
     // Public getters
     // ================================================================
     public Type getType() {
-        return type;
+        int type = flags & FLAGS_TYPE;
+        return type == 0 ? null : TYPES[type - 1];
     }
     
     public String getRawInfo() {
-        return rawInfo;
+        return rawInfo == null && series != null ? series.getRawInfo() : rawInfo;
     }
 
     public String getDescription() {
-        return description;
+        return description == null && series != null ? series.getDescription() : description;
     }
 
     public LocalDate getDate() {
-        return date;
+        return toDate(date);
     }
 
     public LocalTime getStartTime() {
-        return startTime;
+        return toTime(startTime);
     }
 
     public LocalTime getEndTime() {
-        return endTime;
+        return toTime(endTime);
     }
 
     public boolean isCompleted() {
-        return isCompleted;
+        return (flags & FLAG_COMPLETED) != 0;
+    }
+
+    // The day the task was marked as completed, used to archive old tasks
+    public LocalDate getCompletedDate() {
+        return toDate(completedDate);
     }
 
     public String getId() {
-        return recurId;
+        return series == null ? null : series.getRecurId();
+    }
+
+    // Unique identity of this task, used by Storage to journal changes
+    public long getTaskId() {
+        return taskId;
     }
     
     public boolean isRecurring() {
         return getId() != null;
     }
+
+    // Shared by the instances of a series, and not to be changed
+    public ArrayList<LocalDate> getExceptionDates() {
+        return series == null ? null : series.getExceptionDates();
+    }
     
     // Checks whether the task is overdue
     public boolean isOverdue() {
@@ -122,54 +176,67 @@ public class Task implements Cloneable {
     }
 
     // ================================================================
-    // Public setters
+    // Changed copies
     // ================================================================
-    public void setId(String input) {
-        recurId = input;
-    }
-    
-    public void setRawInfo(String input) {
-        rawInfo = input;
+    public Task withCompleted() {
+        Task task = new Task(this);
+        task.setIsCompleted(true);
+        task.setCompletedDate(LocalDate.now());
+        return task;
     }
 
-    public void setDescription(String input) {
-        description = input;
+    public Task withIncomplete() {
+        Task task = new Task(this);
+        task.setIsCompleted(false);
+        task.setCompletedDate(null);
+        return task;
     }
 
-    public void setTime(LocalTime inputStartTime, LocalTime inputEndTime) {
-        if (inputStartTime == null && inputEndTime == null) {
-            startTime = null;
-            endTime = null;
-        } else if (inputStartTime.isBefore(inputEndTime)) {
-            setType(Type.TIMED);
-            startTime = inputStartTime;
-            endTime = inputEndTime;
-        }
+    public Task withException(LocalDate date) {
+        return withException(Collections.singletonList(this), date).get(0);
     }
 
-    public void markAsCompleted() {
-        isCompleted = true;
-    }
-
-    public void markAsIncomplete() {
-        isCompleted = false;
+    /**
+     * Adds an exception date to instances of a recurring series. Instances
+     * that shared a series share the changed one as well.
+     *
+     * @return the changed copies, in the same order
+     */
+    public static ArrayList<Task> withException(List<Task> tasks, LocalDate date) {
+        IdentityHashMap<TaskSeries, TaskSeries> changedSeries = new IdentityHashMap<TaskSeries, TaskSeries>();
+        ArrayList<Task> output = new ArrayList<Task>(tasks.size());
+        for (Task task : tasks) {
+            Task changed = new Task(task);
+            if (task.series != null) {
+                changed.series = changedSeries.computeIfAbsent(task.series,
+                        series -> series.withException(date));
+            }
+            output.add(changed);
+        }
+        return output;
     }
 
-    public void setException(ArrayList<LocalDate> dates) {
-        exceptionDates = dates;
-    }
-    
-    public void addException(LocalDate date){
-        exceptionDates.add(date);
+    // ================================================================
+    // Utility Methods
+    // ================================================================
+    // Random 64-bit id; 0 is reserved for tasks saved before ids existed
+    public static long generateTaskId() {
+        long id = 0;
+        while (id == 0) {
+            id = UUID.randomUUID().getMostSignificantBits();
+        }
+        return id;
     }
 
-    public ArrayList<LocalDate> getExceptionDates() {
-        return exceptionDates;
+    // Gives tasks loaded from an old save file an id. Returns true if one was assigned
+    boolean assignTaskIdIfMissing() {
+        if (taskId != 0) {
+            return false;
+        }
+        taskId = generateTaskId();
+        return true;
     }
 
-    // ================================================================
-    // Utility Methods
-    // ================================================================
     @Override
     public String toString() {
         String result = getDescription() + STRING_EMPTY_SPACE +
@@ -188,36 +255,34 @@ public class Task implements Cloneable {
         return result.trim();
     }
     
-    @Override
-    public Task clone() throws CloneNotSupportedException {
-        Task cloned = (Task) super.clone();
-
-        // Set all the attributes
-        cloned.setType(cloned.getType());
-        cloned.setDescription(cloned.getDescription());
-        cloned.setIsCompleted(cloned.isCompleted());
-        cloned.setDate(cloned.getDate());
-        cloned.setStartTime(cloned.getStartTime());
-        cloned.setEndTime(cloned.getEndTime());
-        cloned.setId(cloned.getId());
-        cloned.setException(cloneExceptionDates(cloned.getExceptionDates()));
-        return cloned;
-    }
-
-    private ArrayList<LocalDate> cloneExceptionDates(ArrayList<LocalDate> exceptionDates) {
-        if (exceptionDates == null) {
-            return null;
-        }
-        ArrayList<LocalDate> output = new ArrayList<LocalDate>();
-        for (LocalDate date : exceptionDates) {
-            output.add(date);
+    // Tasks completed before completion dates were saved count as completed
+    // on their own date. Returns true if a date was assigned
+    boolean assignCompletedDateIfMissing() {
+        if (!isCompleted() || completedDate != NO_DATE) {
+            return false;
         }
-        return output;
+        completedDate = date != NO_DATE ? date : (int) LocalDate.now().toEpochDay();
+        return true;
     }
-    
+
     // ================================================================
     // Initialization Methods
     // ================================================================
+    private void initTask(ArrayList<LocalDateTime> parsedDates) {
+        taskId = generateTaskId();
+        Type type = determineType(parsedDates);
+        setType(type);
+        initDateAndTime(type, parsedDates);
+    }
+
+    // Also used by CreateTask, once for a whole recurring series
+    static String createDescription(String notParsedWords) {
+        String description = extractDescription(notParsedWords);
+        while (description.substring(description.length() - 1).equals(STRING_EMPTY_SPACE)) {
+            description = description.trim();
+        }
+        return description;
+    }
 
     // Determines type of task using the number of dates parsed.
     private Type determineType(ArrayList<LocalDateTime> parsedDates) {
@@ -237,16 +302,16 @@ public class Task implements Cloneable {
             case TIMED :
                 LocalDateTime firstDate = parsedDates.get(POSITION_FIRST_DATE);
                 LocalDateTime secondDate = parsedDates.get(POSITION_SECOND_DATE);
-                date = firstDate.toLocalDate();
-                startTime = firstDate.toLocalTime();
-                endTime = secondDate.toLocalTime();
+                setDate(firstDate.toLocalDate());
+                setStartTime(firstDate.toLocalTime());
+                setEndTime(secondDate.toLocalTime());
                 break;
             case DEADLINE :
                 firstDate = parsedDates.get(POSITION_FIRST_DATE);
-                date = firstDate.toLocalDate();
+                setDate(firstDate.toLocalDate());
                 LocalTime time = firstDate.toLocalTime();
                 if (isUserEnteredTime(time)) {
-                    startTime = time;
+                    setStartTime(time);
                 }
                 break;
             default :
@@ -264,7 +329,7 @@ public class Task implements Cloneable {
      * @param notParsedWords
      * @return description
      */
-    private String extractDescription(String notParsedWords) {
+    private static String extractDescription(String notParsedWords) {
         String[] wordArr = notParsedWords.split(STRING_EMPTY_SPACE);
         ArrayList<String> wordArrayList = new ArrayList<String>(Arrays.asList(wordArr));
 
@@ -274,7 +339,7 @@ public class Task implements Cloneable {
         return description.replace(ESCAPE_CHAR, STRING_EMPTY);
     }
 
-    private void removeKeywords(ArrayList<String> wordArrayList) {
+    private static void removeKeywords(ArrayList<String> wordArrayList) {
         // reverse as we want to delete words from the back
         Collections.reverse(wordArrayList);
 
@@ -287,27 +352,108 @@ public class Task implements Cloneable {
     }
     
     // ================================================================
-    // Private setters
+    // Package-private setters, only used while a task is built or
+    // loaded, e.g. by TaskTypeAdapter
     // ================================================================
+    void setId(String input) {
+        if (series != null) {
+            series = series.withRecurId(input);
+        } else if (input != null) {
+            series = new TaskSeries(input, null, null, null);
+        }
+    }
+    
+    // A value equal to the one of the series is not kept twice
+    void setRawInfo(String input) {
+        boolean isShared = series != null && Objects.equals(input, series.getRawInfo());
+        rawInfo = isShared ? null : input;
+    }
+
+    void setDescription(String input) {
+        boolean isShared = series != null && Objects.equals(input, series.getDescription());
+        description = isShared ? null : input;
+    }
+
+    void setTime(LocalTime inputStartTime, LocalTime inputEndTime) {
+        if (inputStartTime == null && inputEndTime == null) {
+            setStartTime(null);
+            setEndTime(null);
+        } else if (inputStartTime.isBefore(inputEndTime)) {
+            setType(Type.TIMED);
+            setStartTime(inputStartTime);
+            setEndTime(inputEndTime);
+        }
+    }
 
-    private void setDate(LocalDate date) {
-        this.date = date;
+    void setException(ArrayList<LocalDate> dates) {
+        if (series != null) {
+            series = series.withExceptionDates(dates);
+        } else if (dates != null) {
+            series = new TaskSeries(null, null, null, dates);
+        }
+    }
+
+
+    void setTaskId(long taskId) {
+        this.taskId = taskId;
+    }
+
+    // Values of the task that equal the ones of the series are dropped
+    void setSeries(TaskSeries series) {
+        String rawInfo = getRawInfo();
+        String description = getDescription();
+        this.series = series;
+        setRawInfo(rawInfo);
+        setDescription(description);
     }
 
-    private void setType(Type type) {
-        this.type = type;
+    void setDate(LocalDate date) {
+        this.date = fromDate(date);
+    }
+
+    void setType(Type type) {
+        int value = type == null ? 0 : type.ordinal() + 1;
+        flags = (byte) ((flags & ~FLAGS_TYPE) | value);
+    }
+
+    void setIsCompleted(Boolean isCompleted) {
+        if (isCompleted) {
+            flags |= FLAG_COMPLETED;
+        } else {
+            flags &= ~FLAG_COMPLETED;
+        }
+    }
+
+    void setCompletedDate(LocalDate completedDate) {
+        this.completedDate = fromDate(completedDate);
+    }
+
+    // Times are kept to the second
+    void setStartTime(LocalTime startTime) {
+        this.startTime = fromTime(startTime);
+    }
+
+    void setEndTime(LocalTime endTime) {
+        this.endTime = fromTime(endTime);
+    }
+
+    // ================================================================
+    // Compact form
+    // ================================================================
+    private static int fromDate(LocalDate date) {
+        return date == null ? NO_DATE : (int) date.toEpochDay();
     }
 
-    private void setIsCompleted(Boolean isCompleted) {
-        this.isCompleted = isCompleted;
+    private static LocalDate toDate(int epochDay) {
+        return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
     }
 
-    private void setStartTime(LocalTime startTime) {
-        this.startTime = startTime;
+    private static int fromTime(LocalTime time) {
+        return time == null ? NO_TIME : time.toSecondOfDay();
     }
 
-    private void setEndTime(LocalTime endTime) {
-        this.endTime = endTime;
+    private static LocalTime toTime(int secondOfDay) {
+        return secondOfDay == NO_TIME ? null : LocalTime.ofSecondOfDay(secondOfDay);
     }
     
 	// Change the format of the LocalTime object to our preference
@@ -0,0 +1,36 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A format for the save file and its backup.
+ *
+ * JsonTaskCodec writes one JSON object per line and BinaryTaskCodec writes
+ * compact length-prefixed records. Storage picks the one to write with from
+ * the "format" setting, and reads whichever format the file is in.
+ *
+ * Both can add a checksum to every record, so that damage inside a record is
+ * found when it is read.
+ */
+public interface TaskCodec {
+    public void write(File file, List<Task> tasks) throws IOException;
+
+    /**
+     * Reads every task in the file.
+     *
+     * @throws IOException if the file cannot be read or has a damaged record
+     */
+    public ArrayList<Task> read(File file) throws IOException;
+
+    /**
+     * Reads every intact record in the file and skips the damaged ones.
+     *
+     * @param stopAfterTaskId stop once the task with this id is read, or null
+     *                        to read the whole file
+     * @throws IOException if the file cannot be read or is not in this format
+     */
+    public RecoveredTasks recover(File file, Long stopAfterTaskId) throws IOException;
+}
@@ -0,0 +1,562 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * This class reads tasks from files made by other apps, so a backlog can be
+ * moved into Fini at once instead of with one add command per task.
+ *
+ * Supported files:
+ * .ics: iCalendar files. Every VEVENT and VTODO becomes a task, from its
+ *       SUMMARY, DTSTART, DTEND, DUE, STATUS and COMPLETED properties.
+ *       Recurrence rules are not expanded, only the first event is imported
+ * .csv: one task per row. A header row names the columns, e.g.
+ *       "description,date,start time,end time,completed". Without a
+ *       header the columns are taken in that order
+ *
+ * The file is read as a stream, in batches of BATCH_SIZE records. The
+ * records of a batch are parsed in parallel, straight into Task objects
+ * without going through the DateParser. Records that cannot be read are
+ * skipped and listed in getSkippedRecords().
+ */
+public class TaskImporter {
+    private static final int BATCH_SIZE = 10000;
+    private static final String ICS_FILE_SUFFIX = ".ics";
+    private static final String ICS_BEGIN = "BEGIN:";
+    private static final String ICS_END = "END:";
+    private static final String[] ICS_TASK_COMPONENTS = { "VEVENT", "VTODO" };
+    private static final String ICS_STATUS_COMPLETED = "COMPLETED";
+    private static final String ICS_UTC_SUFFIX = "Z";
+    private static final String ICS_TZID = "TZID=";
+    private static final DateTimeFormatter ICS_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter ICS_DATE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+    private static final char CSV_SEPARATOR = ',';
+    private static final char CSV_QUOTE = '"';
+    private static final int CSV_DESCRIPTION = 0;
+    private static final int CSV_DATE = 1;
+    private static final int CSV_START_TIME = 2;
+    private static final int CSV_END_TIME = 3;
+    private static final int CSV_COMPLETED = 4;
+    private static final String[][] CSV_COLUMN_NAMES = {
+        { "description", "subject", "title", "summary", "task", "name" },
+        { "date", "due date", "due", "start date" },
+        { "start time", "time", "start" },
+        { "end time", "end" },
+        { "completed", "done", "status" }
+    };
+    private static final String[] CSV_TRUE_VALUES = { "true", "yes", "y", "x", "1",
+            "completed", "done" };
+
+    private static final DateTimeFormatter[] DATE_FORMATS = {
+        caseInsensitive("yyyy-M-d"),
+        caseInsensitive("d/M/yyyy"),
+        caseInsensitive("d MMM yyyy"),
+        caseInsensitive("d MMMM yyyy")
+    };
+    private static final DateTimeFormatter[] DATE_TIME_FORMATS = {
+        DateTimeFormatter.ISO_LOCAL_DATE_TIME,
+        caseInsensitive("yyyy-M-d H:mm[:ss]"),
+        caseInsensitive("d/M/yyyy H:mm[:ss]")
+    };
+    private static final DateTimeFormatter[] TIME_FORMATS = {
+        caseInsensitive("H:mm[:ss]"),
+        caseInsensitive("h:mm[ ]a"),
+        caseInsensitive("h[ ]a")
+    };
+
+    private ArrayList<String> skippedRecords = new ArrayList<String>();
+
+    // Reads the next record, or null at the end of the file
+    private interface RecordReader<R> {
+        public R read() throws IOException;
+    }
+
+    // Turns a record into a task, or null if the record is not a task
+    private interface RecordParser<R> {
+        public Task parse(R record);
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+
+    /**
+     * Reads the tasks in an ICS or CSV file.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public ArrayList<Task> importFile(File file) throws IOException {
+        skippedRecords = new ArrayList<String>();
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                                                             StandardCharsets.UTF_8)) {
+            if (file.getName().toLowerCase().endsWith(ICS_FILE_SUFFIX)) {
+                IcsReader icsReader = new IcsReader(reader);
+                importRecords(icsReader::readComponent, this::parseComponent, tasks);
+            } else {
+                CsvReader csvReader = new CsvReader(reader);
+                importRecords(csvReader::readRow, csvReader::parseRow, tasks);
+            }
+        }
+        return tasks;
+    }
+
+    // The records that could not be read by the last importFile()
+    public ArrayList<String> getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    // ================================================================
+    // Batches
+    // ================================================================
+    private <R> void importRecords(RecordReader<R> reader, RecordParser<R> parser,
+                                   ArrayList<Task> tasks) throws IOException {
+        ArrayList<R> batch = new ArrayList<R>(BATCH_SIZE);
+        int recordNumber = 1;
+        R record;
+        while ((record = reader.read()) != null) {
+            batch.add(record);
+            if (batch.size() == BATCH_SIZE) {
+                parseBatch(batch, recordNumber, parser, tasks);
+                recordNumber += batch.size();
+                batch.clear();
+            }
+        }
+        parseBatch(batch, recordNumber, parser, tasks);
+    }
+
+    // Parses the records in parallel and adds the tasks in file order
+    private <R> void parseBatch(ArrayList<R> batch, int firstRecordNumber,
+                                RecordParser<R> parser, ArrayList<Task> tasks) {
+        Task[] parsedTasks = new Task[batch.size()];
+        String[] errors = new String[batch.size()];
+        IntStream.range(0, batch.size()).parallel().forEach(i -> {
+            try {
+                parsedTasks[i] = parser.parse(batch.get(i));
+            } catch (DateTimeException | IllegalArgumentException e) {
+                errors[i] = e.getMessage();
+            }
+        });
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null) {
+                skippedRecords.add("record " + (firstRecordNumber + i) + ": " + errors[i]);
+            } else if (parsedTasks[i] != null) {
+                tasks.add(parsedTasks[i]);
+            }
+        }
+    }
+
+    // ================================================================
+    // iCalendar
+    // ================================================================
+    private static class IcsReader {
+        private BufferedReader reader;
+        private String nextLine;
+
+        private IcsReader(BufferedReader reader) throws IOException {
+            this.reader = reader;
+            this.nextLine = reader.readLine();
+        }
+
+        // Reads the lines of the next VEVENT or VTODO, leaving out the
+        // components inside it such as VALARM
+        private ArrayList<String> readComponent() throws IOException {
+            String line;
+            while ((line = readUnfoldedLine()) != null) {
+                if (isTaskComponent(line)) {
+                    break;
+                }
+            }
+            if (line == null) {
+                return null;
+            }
+            ArrayList<String> component = new ArrayList<String>();
+            int depth = 0;
+            while ((line = readUnfoldedLine()) != null) {
+                if (line.startsWith(ICS_BEGIN)) {
+                    depth++;
+                } else if (line.startsWith(ICS_END)) {
+                    if (depth == 0) {
+                        break;
+                    }
+                    depth--;
+                } else if (depth == 0) {
+                    component.add(line);
+                }
+            }
+            return component;
+        }
+
+        // Long lines are folded onto lines that start with a space or tab
+        private String readUnfoldedLine() throws IOException {
+            if (nextLine == null) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder(nextLine);
+            while ((nextLine = reader.readLine()) != null
+                    && !nextLine.isEmpty()
+                    && (nextLine.charAt(0) == ' ' || nextLine.charAt(0) == '\t')) {
+                line.append(nextLine, 1, nextLine.length());
+            }
+            return line.toString();
+        }
+
+        private boolean isTaskComponent(String line) {
+            for (String component : ICS_TASK_COMPONENTS) {
+                if (line.equalsIgnoreCase(ICS_BEGIN + component)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Task parseComponent(ArrayList<String> lines) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        for (String line : lines) {
+            int nameEnd = indexOfAny(line, ";:", 0);
+            int valueStart = indexOfValue(line, nameEnd);
+            if (nameEnd < 0 || valueStart < 0) {
+                continue;
+            }
+            String name = line.substring(0, nameEnd).toUpperCase(Locale.ROOT);
+            values.put(name, line.substring(valueStart + 1));
+            parameters.put(name, line.substring(nameEnd, valueStart));
+        }
+
+        String summary = values.get("SUMMARY");
+        if (summary == null || summary.trim().isEmpty()) {
+            throw new IllegalArgumentException("no SUMMARY");
+        }
+        String startName = values.containsKey("DUE") ? "DUE" : "DTSTART";
+        LocalDateTime start = parseIcsDateTime(values.get(startName), parameters.get(startName));
+        LocalDateTime end = parseIcsDateTime(values.get("DTEND"), parameters.get("DTEND"));
+        boolean isAllDay = isIcsDate(values.get(startName));
+
+        Task task = createTask(unescapeIcsText(summary).trim());
+        if (start != null) {
+            task.setDate(start.toLocalDate());
+            task.setType(Task.Type.DEADLINE);
+            if (!isAllDay) {
+                task.setStartTime(start.toLocalTime());
+            }
+            if (!isAllDay && end != null && end.toLocalDate().equals(start.toLocalDate())
+                    && end.toLocalTime().isAfter(start.toLocalTime())) {
+                task.setType(Task.Type.TIMED);
+                task.setEndTime(end.toLocalTime());
+            }
+        }
+        if (ICS_STATUS_COMPLETED.equalsIgnoreCase(values.get("STATUS"))
+                || values.containsKey("COMPLETED")) {
+            LocalDateTime completed = parseIcsDateTime(values.get("COMPLETED"),
+                                                       parameters.get("COMPLETED"));
+            task.setIsCompleted(true);
+            if (completed != null) {
+                task.setCompletedDate(completed.toLocalDate());
+            }
+            task.assignCompletedDateIfMissing();
+        }
+        return task;
+    }
+
+    // Finds the colon before the value, skipping quoted parameter values
+    private int indexOfValue(String line, int nameEnd) {
+        if (nameEnd < 0) {
+            return -1;
+        }
+        boolean isQuoted = false;
+        for (int i = nameEnd; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == CSV_QUOTE) {
+                isQuoted = !isQuoted;
+            } else if (c == ':' && !isQuoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isIcsDate(String value) {
+        return value != null && value.trim().length() == 8;
+    }
+
+    // Times in UTC or in another time zone are moved to the local time zone
+    private LocalDateTime parseIcsDateTime(String value, String parameters) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (isIcsDate(value)) {
+            return LocalDate.parse(value, ICS_DATE).atStartOfDay();
+        }
+        if (value.endsWith(ICS_UTC_SUFFIX)) {
+            LocalDateTime utc = LocalDateTime.parse(value.substring(0, value.length() - 1),
+                                                    ICS_DATE_TIME);
+            return utc.atOffset(ZoneOffset.UTC).atZoneSameInstant(ZoneId.systemDefault())
+                    .toLocalDateTime();
+        }
+        LocalDateTime dateTime = LocalDateTime.parse(value, ICS_DATE_TIME);
+        int zoneStart = parameters.toUpperCase(Locale.ROOT).indexOf(ICS_TZID);
+        if (zoneStart < 0) {
+            return dateTime;
+        }
+        int zoneEnd = indexOfAny(parameters, ";:", zoneStart);
+        String zone = parameters.substring(zoneStart + ICS_TZID.length(),
+                                           zoneEnd < 0 ? parameters.length() : zoneEnd);
+        try {
+            return dateTime.atZone(ZoneId.of(zone.replace("\"", "")))
+                    .withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        } catch (DateTimeException e) {
+            // a time zone that is only defined inside the file
+            return dateTime;
+        }
+    }
+
+    private String unescapeIcsText(String text) {
+        StringBuilder output = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char escaped = text.charAt(++i);
+                output.append(escaped == 'n' || escaped == 'N' ? ' ' : escaped);
+            } else {
+                output.append(c);
+            }
+        }
+        return output.toString();
+    }
+
+    // ================================================================
+    // CSV
+    // ================================================================
+    private class CsvReader {
+        private BufferedReader reader;
+        private int[] columns = { CSV_DESCRIPTION, CSV_DATE, CSV_START_TIME,
+                                  CSV_END_TIME, CSV_COMPLETED };
+        private boolean isFirstRow = true;
+
+        private CsvReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        // Reads the next row that is not empty. A quoted field may span
+        // several lines. The header row is read here and not returned
+        private ArrayList<String> readRow() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                StringBuilder row = new StringBuilder(line);
+                while (hasOpenQuote(row) && (line = reader.readLine()) != null) {
+                    row.append('\n').append(line);
+                }
+                if (row.toString().trim().isEmpty()) {
+                    continue;
+                }
+                ArrayList<String> fields = splitRow(row.toString());
+                if (isFirstRow) {
+                    isFirstRow = false;
+                    if (readHeader(fields)) {
+                        continue;
+                    }
+                }
+                return fields;
+            }
+            return null;
+        }
+
+        // Finds the columns by name. Returns false if the row is not a header
+        private boolean readHeader(ArrayList<String> fields) {
+            int[] header = { -1, -1, -1, -1, -1 };
+            boolean isHeader = false;
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.get(i).trim().toLowerCase(Locale.ROOT);
+                for (int column = 0; column < CSV_COLUMN_NAMES.length; column++) {
+                    for (String columnName : CSV_COLUMN_NAMES[column]) {
+                        if (columnName.equals(name) && header[column] < 0) {
+                            header[column] = i;
+                            isHeader = true;
+                        }
+                    }
+                }
+            }
+            if (isHeader) {
+                columns = header;
+            }
+            return isHeader;
+        }
+
+        private Task parseRow(ArrayList<String> fields) {
+            String description = getField(fields, CSV_DESCRIPTION);
+            if (description.isEmpty()) {
+                throw new IllegalArgumentException("no description");
+            }
+            Task task = createTask(description);
+            String date = getField(fields, CSV_DATE);
+            String startTime = getField(fields, CSV_START_TIME);
+            String endTime = getField(fields, CSV_END_TIME);
+            if (!date.isEmpty()) {
+                LocalDateTime dateTime = parseDateTime(date);
+                task.setType(Task.Type.DEADLINE);
+                task.setDate(dateTime.toLocalDate());
+                if (!dateTime.toLocalTime().equals(LocalTime.MIDNIGHT) || isTimeOfDay(date)) {
+                    task.setStartTime(dateTime.toLocalTime());
+                }
+            }
+            if (!date.isEmpty() && !startTime.isEmpty()) {
+                task.setStartTime(parseTime(startTime));
+            }
+            if (task.getStartTime() != null && !endTime.isEmpty()) {
+                LocalTime end = parseTime(endTime);
+                if (end.isAfter(task.getStartTime())) {
+                    task.setType(Task.Type.TIMED);
+                    task.setEndTime(end);
+                }
+            }
+            if (isTrue(getField(fields, CSV_COMPLETED))) {
+                task.setIsCompleted(true);
+                task.assignCompletedDateIfMissing();
+            }
+            return task;
+        }
+
+        private String getField(ArrayList<String> fields, int column) {
+            int index = columns[column];
+            if (index < 0 || index >= fields.size()) {
+                return "";
+            }
+            return fields.get(index).trim();
+        }
+    }
+
+    private boolean hasOpenQuote(CharSequence row) {
+        boolean isQuoted = false;
+        for (int i = 0; i < row.length(); i++) {
+            if (row.charAt(i) == CSV_QUOTE) {
+                isQuoted = !isQuoted;
+            }
+        }
+        return isQuoted;
+    }
+
+    // Splits a row on commas. Quotes around a field are removed, and two
+    // quotes in a quoted field stand for one
+    private ArrayList<String> splitRow(String row) {
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean isQuoted = false;
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (c == CSV_QUOTE) {
+                if (isQuoted && i + 1 < row.length() && row.charAt(i + 1) == CSV_QUOTE) {
+                    field.append(CSV_QUOTE);
+                    i++;
+                } else {
+                    isQuoted = !isQuoted;
+                }
+            } else if (c == CSV_SEPARATOR && !isQuoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private boolean isTrue(String value) {
+        for (String trueValue : CSV_TRUE_VALUES) {
+            if (trueValue.equalsIgnoreCase(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ================================================================
+    // Dates and times
+    // ================================================================
+    private static DateTimeFormatter caseInsensitive(String pattern) {
+        return new DateTimeFormatterBuilder()
+                .parseCaseInsensitive()
+                .appendPattern(pattern)
+                .toFormatter(Locale.ENGLISH);
+    }
+
+    // A date with or without a time of day
+    private LocalDateTime parseDateTime(String value) {
+        for (DateTimeFormatter format : DATE_FORMATS) {
+            if (isInFormat(value, format)) {
+                return LocalDate.parse(value, format).atStartOfDay();
+            }
+        }
+        for (DateTimeFormatter format : DATE_TIME_FORMATS) {
+            if (isInFormat(value, format)) {
+                return LocalDateTime.parse(value, format);
+            }
+        }
+        throw new DateTimeException("unknown date \"" + value + "\"");
+    }
+
+    private boolean isTimeOfDay(String value) {
+        return value.indexOf(':') >= 0;
+    }
+
+    private LocalTime parseTime(String value) {
+        for (DateTimeFormatter format : TIME_FORMATS) {
+            if (isInFormat(value, format)) {
+                return LocalTime.parse(value, format);
+            }
+        }
+        throw new DateTimeException("unknown time \"" + value + "\"");
+    }
+
+    // Checks the format without throwing, as most rows would otherwise
+    // throw for every format before the one they are in
+    private boolean isInFormat(String value, DateTimeFormatter format) {
+        ParsePosition position = new ParsePosition(0);
+        return format.parseUnresolved(value, position) != null
+                && position.getErrorIndex() < 0 && position.getIndex() == value.length();
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private Task createTask(String description) {
+        Task task = new Task();
+        task.setTaskId(Task.generateTaskId());
+        task.setRawInfo(description);
+        task.setDescription(description);
+        task.setType(Task.Type.FLOATING);
+        task.setIsCompleted(false);
+        return task;
+    }
+
+    private static int indexOfAny(String text, String characters, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (characters.indexOf(text.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
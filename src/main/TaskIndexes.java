@@ -0,0 +1,132 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Indexes of the controller's tasks: by date, by recurring series and by
+ * whether they are completed.
+ *
+ * Each index keeps its tasks by their position in the TaskList, so a lookup
+ * returns them in list order without sorting and only touches the tasks it
+ * returns. The controller passes the old and the new list on every change,
+ * and only the tasks that changed or moved between them are looked at, so
+ * that costs O(log n) per changed task.
+ */
+final class TaskIndexes {
+    private final NavigableMap<LocalDate, NavigableMap<Integer, Task>> tasksByDate =
+            new TreeMap<LocalDate, NavigableMap<Integer, Task>>();
+    private final HashMap<String, NavigableMap<Integer, Task>> tasksBySeries =
+            new HashMap<String, NavigableMap<Integer, Task>>();
+    private final TreeMap<Integer, Task> openTasks = new TreeMap<Integer, Task>();
+    private final TreeMap<Integer, Task> completedTasks = new TreeMap<Integer, Task>();
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+
+    // The indexes must hold oldTasks, afterwards they hold newTasks
+    void update(TaskList oldTasks, TaskList newTasks) {
+        if (newTasks.isEmpty() || oldTasks.isEmpty()) {
+            clear();
+            for (Task task : newTasks) {
+                add(task, newTasks.getPosition(task.getTaskId()));
+            }
+            return;
+        }
+        HashSet<Long> changedTaskIds = new HashSet<Long>();
+        oldTasks.forEachDifference(newTasks, (taskId, oldTask, newTask) -> changedTaskIds.add(taskId));
+        oldTasks.forEachMove(newTasks, (taskId, oldPosition, newPosition) -> changedTaskIds.add(taskId));
+        for (long taskId : changedTaskIds) {
+            Task oldTask = oldTasks.get(taskId);
+            if (oldTask != null) {
+                remove(oldTask, oldTasks.getPosition(taskId));
+            }
+        }
+        for (long taskId : changedTaskIds) {
+            Task newTask = newTasks.get(taskId);
+            if (newTask != null) {
+                add(newTask, newTasks.getPosition(taskId));
+            }
+        }
+    }
+
+    void clear() {
+        tasksByDate.clear();
+        tasksBySeries.clear();
+        openTasks.clear();
+        completedTasks.clear();
+    }
+
+    Collection<Task> getOpenTasks() {
+        return openTasks.values();
+    }
+
+    Collection<Task> getCompletedTasks() {
+        return completedTasks.values();
+    }
+
+    Collection<Task> getTasksOn(LocalDate date) {
+        return valuesOrEmpty(tasksByDate.get(date));
+    }
+
+    // Every instance of the series with the recurId
+    Collection<Task> getSeries(String recurId) {
+        return valuesOrEmpty(tasksBySeries.get(recurId));
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+    private void add(Task task, int position) {
+        if (task.getDate() != null) {
+            tasksByDate.computeIfAbsent(task.getDate(), date -> new TreeMap<Integer, Task>())
+                       .put(position, task);
+        }
+        if (task.getId() != null) {
+            tasksBySeries.computeIfAbsent(task.getId(), recurId -> new TreeMap<Integer, Task>())
+                         .put(position, task);
+        }
+        if (task.isCompleted()) {
+            completedTasks.put(position, task);
+        } else {
+            openTasks.put(position, task);
+        }
+    }
+
+    private void remove(Task task, int position) {
+        if (task.getDate() != null) {
+            removeFrom(tasksByDate, task.getDate(), position);
+        }
+        if (task.getId() != null) {
+            removeFrom(tasksBySeries, task.getId(), position);
+        }
+        if (task.isCompleted()) {
+            completedTasks.remove(position);
+        } else {
+            openTasks.remove(position);
+        }
+    }
+
+    // Drops the key once it has no tasks left
+    private static <K> void removeFrom(Map<K, NavigableMap<Integer, Task>> index, K key,
+                                       int position) {
+        Map<Integer, Task> tasks = index.get(key);
+        if (tasks != null) {
+            tasks.remove(position);
+            if (tasks.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static Collection<Task> valuesOrEmpty(Map<Integer, Task> tasks) {
+        return tasks == null ? Collections.<Task>emptyList() : tasks.values();
+    }
+}
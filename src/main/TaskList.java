@@ -0,0 +1,310 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The tasks of the controller, in the order they were added, as a list that
+ * does not change. add, replace and remove return a new list that shares
+ * nearly all of its nodes with the old one, so an undo state is just a
+ * reference to an old list.
+ *
+ * Three structures are kept:
+ *
+ * slots:     PersistentVector of the tasks in order, null where one was removed
+ * tasks:     PersistentLongMap from task id to task
+ * positions: PersistentLongMap from task id to its slot
+ *
+ * Finding, adding, replacing and removing a task takes O(log n). When the
+ * slots are laid out, there is a free slot in front of every task, so undo
+ * can put a task back between two others without moving the rest, see
+ * insertAfter. Free slots are dropped when they outnumber the tasks three to
+ * one, which takes O(n) but only happens after n removals. That only
+ * renumbers the slots, so the tasks map still shares its nodes with older
+ * lists.
+ */
+public final class TaskList implements Iterable<Task> {
+    private static final int MIN_SLOTS_TO_COMPACT = 32;
+    private static final int MAX_TASKS_TO_MOVE = 32;
+
+    private static final TaskList EMPTY = new TaskList(PersistentVector.<Task>empty(),
+                                                       PersistentLongMap.<Task>empty(),
+                                                       PersistentLongMap.<Integer>empty());
+
+    private final PersistentVector<Task> slots;
+    private final PersistentLongMap<Task> tasks;
+    private final PersistentLongMap<Integer> positions;
+
+    private TaskList(PersistentVector<Task> slots, PersistentLongMap<Task> tasks,
+                     PersistentLongMap<Integer> positions) {
+        this.slots = slots;
+        this.tasks = tasks;
+        this.positions = positions;
+    }
+
+    public static TaskList empty() {
+        return EMPTY;
+    }
+
+    public static TaskList of(List<Task> input) {
+        return EMPTY.add(input);
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    public int size() {
+        return tasks.size();
+    }
+
+    public boolean isEmpty() {
+        return tasks.size() == 0;
+    }
+
+    // The task with the id, or null if there is none
+    public Task get(long taskId) {
+        return tasks.get(taskId);
+    }
+
+    // Tasks go after the last one, tasks with a known id replace it
+    public TaskList add(List<Task> input) {
+        if (isEmpty()) {
+            return build(input);
+        }
+        PersistentVector<Task> newSlots = slots;
+        PersistentLongMap<Task> newTasks = tasks;
+        PersistentLongMap<Integer> newPositions = positions;
+        for (Task task : input) {
+            Integer position = newPositions.get(task.getTaskId());
+            if (position == null) {
+                newPositions = newPositions.put(task.getTaskId(), newSlots.size());
+                newSlots = newSlots.add(task);
+            } else {
+                newSlots = newSlots.set(position, task);
+            }
+            newTasks = newTasks.put(task.getTaskId(), task);
+        }
+        return new TaskList(newSlots, newTasks, newPositions);
+    }
+
+    // Only tasks with a known id are replaced, others are left out
+    public TaskList replace(List<Task> input) {
+        PersistentVector<Task> newSlots = slots;
+        PersistentLongMap<Task> newTasks = tasks;
+        for (Task task : input) {
+            Integer position = positions.get(task.getTaskId());
+            if (position != null) {
+                newSlots = newSlots.set(position, task);
+                newTasks = newTasks.put(task.getTaskId(), task);
+            }
+        }
+        return new TaskList(newSlots, newTasks, positions);
+    }
+
+    public TaskList remove(Collection<Task> input) {
+        PersistentVector<Task> newSlots = slots;
+        PersistentLongMap<Task> newTasks = tasks;
+        PersistentLongMap<Integer> newPositions = positions;
+        for (Task task : input) {
+            Integer position = newPositions.get(task.getTaskId());
+            if (position != null) {
+                newSlots = newSlots.set(position, null);
+                newTasks = newTasks.remove(task.getTaskId());
+                newPositions = newPositions.remove(task.getTaskId());
+            }
+        }
+        if (newSlots.size() >= MIN_SLOTS_TO_COMPACT && newSlots.size() > 4 * newTasks.size()) {
+            return layOut(withoutFreeSlots(newSlots), newTasks);
+        }
+        return new TaskList(newSlots, newTasks, newPositions);
+    }
+
+    /**
+     * Puts the task right after the one with previousTaskId, or first if that
+     * is null, as undo does with a task it takes back out of the history. A
+     * task whose previous task is not in the list goes last, like add.
+     *
+     * The task takes the first free slot after the previous task, and the
+     * tasks in between move up one slot. Usually that is the slot the task
+     * had, or the one laid out in front of the next task, so it takes
+     * O(log n). Only if MAX_TASKS_TO_MOVE tasks are in the way are the slots
+     * laid out again, in O(n).
+     */
+    public TaskList insertAfter(Long previousTaskId, Task task) {
+        long taskId = task.getTaskId();
+        if (positions.get(taskId) != null) {
+            return replace(Collections.singletonList(task));
+        }
+        int position = 0;
+        if (previousTaskId != null) {
+            Integer previousPosition = positions.get(previousTaskId);
+            if (previousPosition == null) {
+                return add(Collections.singletonList(task));
+            }
+            position = previousPosition + 1;
+        }
+        int freeSlot = position;
+        while (freeSlot < slots.size() && slots.get(freeSlot) != null) {
+            if (freeSlot - position == MAX_TASKS_TO_MOVE) {
+                return layOut(withTaskAt(position, task), tasks.put(taskId, task));
+            }
+            freeSlot++;
+        }
+        PersistentVector<Task> newSlots = freeSlot == slots.size() ? slots.add(null) : slots;
+        PersistentLongMap<Integer> newPositions = positions;
+        for (int i = freeSlot; i > position; i--) {
+            Task movedTask = newSlots.get(i - 1);
+            newSlots = newSlots.set(i, movedTask);
+            newPositions = newPositions.put(movedTask.getTaskId(), i);
+        }
+        return new TaskList(newSlots.set(position, task), tasks.put(taskId, task),
+                            newPositions.put(taskId, position));
+    }
+
+    /**
+     * Calls the listener for every task id whose task differs between this
+     * list and the other one, with null for a list that does not have it.
+     * Takes time in proportion to the changes between two lists that were
+     * made from each other, not to their size.
+     */
+    void forEachDifference(TaskList other, PersistentLongMap.DifferenceListener<Task> listener) {
+        tasks.forEachDifference(other.tasks, listener);
+    }
+
+    /**
+     * Like forEachDifference, for the task ids whose position differs. A
+     * change moves at most MAX_TASKS_TO_MOVE tasks, but after a compaction
+     * every task has a new position.
+     */
+    void forEachMove(TaskList other, PersistentLongMap.DifferenceListener<Integer> listener) {
+        positions.forEachDifference(other.positions, listener);
+    }
+
+    // Orders tasks like the list does, or -1 if the id is not in it. Only
+    // the order of positions means something, as they change on compaction
+    int getPosition(long taskId) {
+        Integer position = positions.get(taskId);
+        return position == null ? -1 : position;
+    }
+
+    // The id of the task before the one with the id, or null if it is first
+    Long getPreviousTaskId(long taskId) {
+        Integer position = positions.get(taskId);
+        for (int i = position == null ? -1 : position - 1; i >= 0; i--) {
+            Task task = slots.get(i);
+            if (task != null) {
+                return task.getTaskId();
+            }
+        }
+        return null;
+    }
+
+    public ArrayList<Task> toArrayList() {
+        ArrayList<Task> output = new ArrayList<Task>(size());
+        for (Task task : this) {
+            output.add(task);
+        }
+        return output;
+    }
+
+    public Stream<Task> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    // The tasks in order, skipping removed slots
+    @Override
+    public Iterator<Task> iterator() {
+        Iterator<Task> slotIterator = slots.iterator();
+        return new Iterator<Task>() {
+            private Task next = findNext();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Task next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Task task = next;
+                next = findNext();
+                return task;
+            }
+
+            private Task findNext() {
+                while (slotIterator.hasNext()) {
+                    Task task = slotIterator.next();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    // ================================================================
+    // Private methods
+    // ================================================================
+    private static TaskList build(List<Task> input) {
+        ArrayList<Task> orderedTasks = new ArrayList<Task>(input.size());
+        PersistentLongMap<Task> tasks = PersistentLongMap.empty();
+        HashMap<Long, Integer> indexes = new HashMap<Long, Integer>();
+        for (Task task : input) {
+            Integer index = indexes.putIfAbsent(task.getTaskId(), orderedTasks.size());
+            if (index == null) {
+                orderedTasks.add(task);
+            } else {
+                orderedTasks.set(index, task);
+            }
+            tasks = tasks.put(task.getTaskId(), task);
+        }
+        return layOut(orderedTasks, tasks);
+    }
+
+    // Every task gets a free slot in front of it
+    private static TaskList layOut(List<Task> orderedTasks, PersistentLongMap<Task> tasks) {
+        ArrayList<Task> slots = new ArrayList<Task>(2 * orderedTasks.size());
+        PersistentLongMap<Integer> positions = PersistentLongMap.empty();
+        for (Task task : orderedTasks) {
+            slots.add(null);
+            positions = positions.put(task.getTaskId(), slots.size());
+            slots.add(task);
+        }
+        return new TaskList(PersistentVector.of(slots), tasks, positions);
+    }
+
+    private static ArrayList<Task> withoutFreeSlots(PersistentVector<Task> slots) {
+        ArrayList<Task> orderedTasks = new ArrayList<Task>();
+        for (Task task : slots) {
+            if (task != null) {
+                orderedTasks.add(task);
+            }
+        }
+        return orderedTasks;
+    }
+
+    // The tasks in order, with the task in front of the one at the position
+    private ArrayList<Task> withTaskAt(int position, Task task) {
+        ArrayList<Task> orderedTasks = new ArrayList<Task>(size() + 1);
+        int slot = 0;
+        for (Task slotTask : slots) {
+            if (slot++ == position) {
+                orderedTasks.add(task);
+            }
+            if (slotTask != null) {
+                orderedTasks.add(slotTask);
+            }
+        }
+        return orderedTasks;
+    }
+}
@@ -0,0 +1,71 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+/**
+ * The data that all instances of a recurring task have in common: the
+ * recurId, the raw input, the description and the exception dates.
+ *
+ * CreateTask makes one TaskSeries per series, and every instance points to
+ * it instead of keeping and computing its own copies.
+ *
+ * Like Task, a TaskSeries does not change once it is built, and neither does
+ * its list of exception dates. Changes make a new TaskSeries, see
+ * Task.withException(List<Task>, LocalDate).
+ */
+class TaskSeries {
+    private final String recurId;
+    private final String rawInfo;
+    private final String description;
+    private final ArrayList<LocalDate> exceptionDates;
+
+    TaskSeries(String recurId, String rawInfo, String description,
+               ArrayList<LocalDate> exceptionDates) {
+        this.recurId = recurId;
+        this.rawInfo = rawInfo;
+        this.description = description;
+        this.exceptionDates = exceptionDates;
+    }
+
+    // ================================================================
+    // Getters
+    // ================================================================
+    String getRecurId() {
+        return recurId;
+    }
+
+    String getRawInfo() {
+        return rawInfo;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    ArrayList<LocalDate> getExceptionDates() {
+        return exceptionDates;
+    }
+
+    // ================================================================
+    // Copies with one field changed
+    // ================================================================
+    TaskSeries withRecurId(String recurId) {
+        return new TaskSeries(recurId, rawInfo, description, exceptionDates);
+    }
+
+    TaskSeries withExceptionDates(ArrayList<LocalDate> exceptionDates) {
+        return new TaskSeries(recurId, rawInfo, description, exceptionDates);
+    }
+
+    // Each date is added once. The list is copied, as tasks that still
+    // point to this series must not change
+    TaskSeries withException(LocalDate date) {
+        ArrayList<LocalDate> dates = exceptionDates == null
+                ? new ArrayList<LocalDate>() : new ArrayList<LocalDate>(exceptionDates);
+        if (!dates.contains(date)) {
+            dates.add(date);
+        }
+        return new TaskSeries(recurId, rawInfo, description, dates);
+    }
+}
@@ -0,0 +1,204 @@
+package main;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes a Task field by field instead of through reflection.
+ *
+ * The field names are the same ones Gson used for reflection, so save files
+ * from older versions can still be read. Dates and times are written with
+ * LocalDateTypeAdapter and LocalTimeTypeAdapter, and fields that are not set
+ * are left out.
+ *
+ * In save files, the fields shared by a recurring series are written once in
+ * a SeriesHeader object before its first instance, see write(JsonWriter,
+ * Task, SeriesHeader).
+ */
+public class TaskTypeAdapter extends TypeAdapter<Task> {
+    private static final String FIELD_TASK_ID = "taskId";
+    private static final String FIELD_RAW_INFO = "rawInfo";
+    private static final String FIELD_TYPE = "type";
+    private static final String FIELD_DESCRIPTION = "description";
+    private static final String FIELD_DATE = "date";
+    private static final String FIELD_START_TIME = "startTime";
+    private static final String FIELD_END_TIME = "endTime";
+    private static final String FIELD_IS_COMPLETED = "isCompleted";
+    private static final String FIELD_COMPLETED_DATE = "completedDate";
+    private static final String FIELD_RECUR_ID = "recurId";
+    private static final String FIELD_EXCEPTION_DATES = "exceptionDates";
+    private static final String FIELD_SERIES = "series";
+
+    // a header without shared fields, so every field of a task is written
+    private static final SeriesHeader EMPTY_HEADER = new SeriesHeader();
+
+    private LocalDateTypeAdapter dateAdapter = new LocalDateTypeAdapter();
+    private LocalTimeTypeAdapter timeAdapter = new LocalTimeTypeAdapter();
+
+    // ================================================================
+    // Writing
+    // ================================================================
+    @Override
+    public void write(JsonWriter writer, Task task) throws IOException {
+        write(writer, task, null);
+    }
+
+    /**
+     * Writes a task, leaving out the fields that the header of its series
+     * already holds. A SeriesHeader itself is written with FIELD_SERIES first,
+     * so it can be told apart from a task when reading.
+     *
+     * @param header the header written before the task, or null
+     */
+    public void write(JsonWriter writer, Task task, SeriesHeader header)
+            throws IOException {
+        if (task == null) {
+            writer.nullValue();
+            return;
+        }
+        boolean isHeader = task instanceof SeriesHeader;
+        if (header == null) {
+            header = EMPTY_HEADER;
+        }
+        writer.beginObject();
+        if (isHeader) {
+            writer.name(FIELD_SERIES).value(task.getId());
+        } else {
+            writer.name(FIELD_TASK_ID).value(task.getTaskId());
+        }
+        if (header.getRawInfo() == null) {
+            writeString(writer, FIELD_RAW_INFO, task.getRawInfo());
+        }
+        if (header.getType() == null && task.getType() != null) {
+            writer.name(FIELD_TYPE).value(task.getType().name());
+        }
+        if (header.getDescription() == null) {
+            writeString(writer, FIELD_DESCRIPTION, task.getDescription());
+        }
+        if (task.getDate() != null) {
+            dateAdapter.write(writer.name(FIELD_DATE), task.getDate());
+        }
+        if (header.getStartTime() == null && task.getStartTime() != null) {
+            timeAdapter.write(writer.name(FIELD_START_TIME), task.getStartTime());
+        }
+        if (header.getEndTime() == null && task.getEndTime() != null) {
+            timeAdapter.write(writer.name(FIELD_END_TIME), task.getEndTime());
+        }
+        if (!isHeader) {
+            writer.name(FIELD_IS_COMPLETED).value(task.isCompleted());
+            if (task.getCompletedDate() != null) {
+                dateAdapter.write(writer.name(FIELD_COMPLETED_DATE), task.getCompletedDate());
+            }
+            writeString(writer, FIELD_RECUR_ID, task.getId());
+        }
+        if (header.getExceptionDates() == null && task.getExceptionDates() != null) {
+            writer.name(FIELD_EXCEPTION_DATES).beginArray();
+            for (LocalDate date : task.getExceptionDates()) {
+                dateAdapter.write(writer, date);
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    private void writeString(JsonWriter writer, String name, String value)
+            throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+
+    // ================================================================
+    // Reading
+    // ================================================================
+    // Returns a SeriesHeader if the object starts with FIELD_SERIES
+    @Override
+    public Task read(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        Task task = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (task == null) {
+                task = name.equals(FIELD_SERIES) ? new SeriesHeader() : new Task();
+            }
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            readField(reader, task, name);
+        }
+        reader.endObject();
+        return task == null ? new Task() : task;
+    }
+
+    private void readField(JsonReader reader, Task task, String name) throws IOException {
+        switch (name) {
+            case FIELD_TASK_ID :
+                task.setTaskId(reader.nextLong());
+                break;
+            case FIELD_RAW_INFO :
+                task.setRawInfo(reader.nextString());
+                break;
+            case FIELD_TYPE :
+                task.setType(readType(reader.nextString()));
+                break;
+            case FIELD_DESCRIPTION :
+                task.setDescription(reader.nextString());
+                break;
+            case FIELD_DATE :
+                task.setDate(dateAdapter.read(reader));
+                break;
+            case FIELD_START_TIME :
+                task.setStartTime(timeAdapter.read(reader));
+                break;
+            case FIELD_END_TIME :
+                task.setEndTime(timeAdapter.read(reader));
+                break;
+            case FIELD_IS_COMPLETED :
+                task.setIsCompleted(reader.nextBoolean());
+                break;
+            case FIELD_COMPLETED_DATE :
+                task.setCompletedDate(dateAdapter.read(reader));
+                break;
+            case FIELD_SERIES :
+            case FIELD_RECUR_ID :
+                task.setId(reader.nextString());
+                break;
+            case FIELD_EXCEPTION_DATES :
+                task.setException(readDates(reader));
+                break;
+            default :
+                reader.skipValue();
+                break;
+        }
+    }
+
+    private Task.Type readType(String name) {
+        try {
+            return Task.Type.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new JsonSyntaxException("Unknown task type: " + name);
+        }
+    }
+
+    private ArrayList<LocalDate> readDates(JsonReader reader) throws IOException {
+        ArrayList<LocalDate> dates = new ArrayList<LocalDate>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            dates.add(dateAdapter.read(reader));
+        }
+        reader.endArray();
+        return dates;
+    }
+}
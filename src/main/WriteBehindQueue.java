@@ -0,0 +1,226 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class moves disk writes off the JavaFX thread. Storage hands over
+ * snapshots and journal entries, and a single writer thread writes them out.
+ *
+ * Writes that are still waiting are merged:
+ * - a new snapshot replaces any waiting snapshot and journal entries
+ * - journal entries are appended together with one open of the journal
+ *
+ * When the writer flushes depends on the FlushPolicy:
+ * IMMEDIATE:    as soon as something is waiting
+ * GROUP_COMMIT: a short window after the first waiting write, so a burst of
+ *               commands is written together
+ * INTERVAL:     at a fixed interval
+ *
+ * A write that fails, i.e. returns false or throws, is put back in front of
+ * the writes that came after it and tried again after RETRY_DELAY. A newer
+ * snapshot still replaces it. flush() blocks until everything handed over so
+ * far is on disk, or until a write fails, and hasFailedWrites() tells the
+ * controller that changes are not saved yet.
+ */
+public class WriteBehindQueue {
+    public static enum FlushPolicy {
+        IMMEDIATE, GROUP_COMMIT, INTERVAL
+    };
+
+    private static final Logger logger = Logger.getLogger(WriteBehindQueue.class.getName());
+    private static final long RETRY_DELAY = 1000;
+
+    private final Object lock = new Object();
+    private final Function<ArrayList<Task>, Boolean> snapshotWriter;
+    private final Function<List<JournalEntry>, Boolean> journalWriter;
+    private final FlushPolicy flushPolicy;
+    private final long flushDelay;
+
+    private ArrayList<Task> pendingSnapshot;
+    private ArrayList<JournalEntry> pendingEntries;
+    private long firstPendingTime;
+    private long lastFlushTime;
+    private boolean isWriting;
+    private boolean isFlushRequested;
+    private int failedWrites; // in a row, 0 after a write goes through
+    private long failureCount; // ever, so flush() can tell a new failure
+
+    public WriteBehindQueue(Function<ArrayList<Task>, Boolean> snapshotWriter,
+                            Function<List<JournalEntry>, Boolean> journalWriter,
+                            FlushPolicy flushPolicy, long flushDelay) {
+        this.snapshotWriter = snapshotWriter;
+        this.journalWriter = journalWriter;
+        this.flushPolicy = flushPolicy;
+        this.flushDelay = flushDelay;
+        pendingEntries = new ArrayList<JournalEntry>();
+        lastFlushTime = System.currentTimeMillis();
+
+        Thread writerThread = new Thread(this::runWriter, "storage-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // ================================================================
+    // Public methods
+    // ================================================================
+    public void enqueueSnapshot(ArrayList<Task> tasks) {
+        synchronized (lock) {
+            markPending();
+            pendingSnapshot = tasks;
+            pendingEntries.clear();
+            lock.notifyAll();
+        }
+    }
+
+    public void enqueueEntries(List<JournalEntry> entries) {
+        synchronized (lock) {
+            markPending();
+            pendingEntries.addAll(entries);
+            lock.notifyAll();
+        }
+    }
+
+    // Blocks until every write handed over so far has been written, false
+    // if one of them failed and is still waiting
+    public Boolean flush() {
+        synchronized (lock) {
+            long failuresBefore = failureCount;
+            isFlushRequested = true;
+            lock.notifyAll();
+            try {
+                while ((hasPending() || isWriting) && failureCount == failuresBefore) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            isFlushRequested = false;
+            return !hasPending() && !isWriting;
+        }
+    }
+
+    // True while the last write failed, so changes are only in memory
+    public boolean hasFailedWrites() {
+        synchronized (lock) {
+            return failedWrites > 0;
+        }
+    }
+
+    // ================================================================
+    // Writer thread
+    // ================================================================
+    private void runWriter() {
+        while (true) {
+            ArrayList<Task> snapshot;
+            ArrayList<JournalEntry> entries;
+            synchronized (lock) {
+                try {
+                    while (!hasPending()) {
+                        lock.wait();
+                    }
+                    waitForRetryTime();
+                    waitForFlushTime();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                snapshot = pendingSnapshot;
+                entries = pendingEntries;
+                pendingSnapshot = null;
+                pendingEntries = new ArrayList<JournalEntry>();
+                isWriting = true;
+            }
+
+            // entries come after the snapshot, so they wait for it
+            boolean isSnapshotWritten = snapshot == null || write(snapshotWriter, snapshot);
+            boolean isJournalWritten = isSnapshotWritten
+                    && (entries.isEmpty() || write(journalWriter, entries));
+
+            synchronized (lock) {
+                isWriting = false;
+                lastFlushTime = System.currentTimeMillis();
+                if (isJournalWritten) {
+                    failedWrites = 0;
+                } else {
+                    putBack(isSnapshotWritten ? null : snapshot, entries);
+                    failedWrites++;
+                    failureCount++;
+                    logger.log(Level.SEVERE, "Could not save changes, " + failedWrites
+                            + " failed writes in a row, trying again");
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static <T> boolean write(Function<T, Boolean> writer, T input) {
+        try {
+            return Boolean.TRUE.equals(writer.apply(input));
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Write failed", e);
+            return false;
+        }
+    }
+
+    // Puts failed writes (holding the lock) in front of the ones that came
+    // after them, unless a newer snapshot already replaces them
+    private void putBack(ArrayList<Task> snapshot, ArrayList<JournalEntry> entries) {
+        if (pendingSnapshot != null) {
+            return;
+        }
+        markPending();
+        pendingSnapshot = snapshot;
+        entries.addAll(pendingEntries);
+        pendingEntries = entries;
+    }
+
+    // Waits (holding the lock) after a failed write, so a full disk is not
+    // written to in a loop
+    private void waitForRetryTime() throws InterruptedException {
+        if (failedWrites == 0) {
+            return;
+        }
+        long retryTime = lastFlushTime + RETRY_DELAY;
+        long remaining = retryTime - System.currentTimeMillis();
+        while (remaining > 0) {
+            lock.wait(remaining);
+            remaining = retryTime - System.currentTimeMillis();
+        }
+    }
+
+    // Waits (holding the lock) until the flush policy allows a write
+    private void waitForFlushTime() throws InterruptedException {
+        long flushTime;
+        switch (flushPolicy) {
+            case GROUP_COMMIT :
+                flushTime = firstPendingTime + flushDelay;
+                break;
+            case INTERVAL :
+                flushTime = lastFlushTime + flushDelay;
+                break;
+            default :
+                return;
+        }
+        long remaining = flushTime - System.currentTimeMillis();
+        while (remaining > 0 && !isFlushRequested) {
+            lock.wait(remaining);
+            remaining = flushTime - System.currentTimeMillis();
+        }
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private boolean hasPending() {
+        return pendingSnapshot != null || !pendingEntries.isEmpty();
+    }
+
+    private void markPending() {
+        if (!hasPending()) {
+            firstPendingTime = System.currentTimeMillis();
+        }
+    }
+}
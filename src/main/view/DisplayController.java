@@ -271,10 +271,13 @@ public class DisplayController extends VBox {
         helpList.add(new HelpBox("Mark a task as completed", "complete <index>"));
         helpList.add(new HelpBox("Mark a task as incomplete", "incomplete <index>"));
         helpList.add(new HelpBox("Undo previous action", "undo"));
+        helpList.add(new HelpBox("Redo undone action", "redo"));
         helpList.add(new HelpBox("Set a file as save file",
                                  "set <directory>"));
         helpList.add(new HelpBox("Change save directory",
                                  "move <directory>"));
+        helpList.add(new HelpBox("Import tasks from a calendar or spreadsheet",
+                                 "import <file.ics/file.csv>"));
         helpList.add(new HelpBox("Search for a task", "search <keyword/day>"));
         helpList.add(new HelpBox("Display overview",
                                  "display"));
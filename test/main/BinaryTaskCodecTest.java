@@ -0,0 +1,147 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryTaskCodecTest {
+    // magic number, version and file flags
+    private static final int FILE_HEADER_SIZE = 6;
+    // record length, kind and string index
+    private static final int STRING_RECORD_HEADER_SIZE = 9;
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fini-binary-test").toFile();
+        file = new File(directory, "savefile.txt");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        List<Task> tasks = createTasks(4);
+        tasks.get(1).setDate(LocalDate.of(2015, 10, 20));
+        tasks.get(1).setTime(LocalTime.of(9, 0), LocalTime.of(10, 30));
+        new BinaryTaskCodec(false).write(file, tasks);
+
+        ArrayList<Task> read = new BinaryTaskCodec(false).read(file);
+        assertEquals(getDescriptions(tasks), getDescriptions(read));
+        assertEquals(getRawInfos(tasks), getRawInfos(read));
+        assertEquals(LocalDate.of(2015, 10, 20), read.get(1).getDate());
+        assertEquals(LocalTime.of(10, 30), read.get(1).getEndTime());
+    }
+
+    // Only the task that refers to the damaged string is lost, the strings
+    // after it keep their index
+    @Test
+    public void damagedStringRecordSkipsOnlyItsTask() throws IOException {
+        List<Task> tasks = createTasks(4);
+        new BinaryTaskCodec(true).write(file, tasks);
+        flipByte(file, FILE_HEADER_SIZE + STRING_RECORD_HEADER_SIZE + 1);
+
+        RecoveredTasks recovered = new BinaryTaskCodec(true).recover(file, null);
+        assertFalse(recovered.isComplete());
+        assertEquals(Arrays.asList("task 2", "task 3", "task 4"),
+                     getDescriptions(recovered.getTasks()));
+        assertEquals(Arrays.asList("raw 2", "raw 3", "raw 4"),
+                     getRawInfos(recovered.getTasks()));
+    }
+
+    @Test
+    public void damagedTaskIsFilledFromBackup() throws IOException {
+        List<Task> tasks = createTasks(20);
+        File backup = new File(directory, "backup.txt");
+        new BinaryTaskCodec(true).write(file, tasks);
+        new BinaryTaskCodec(true).write(backup, tasks);
+        flipByte(file, file.length() / 2);
+
+        RecoveredTasks recovered = new BinaryTaskCodec(true).recover(file, null);
+        assertFalse(recovered.isComplete());
+        assertTrue(recovered.getTasks().size() < tasks.size());
+
+        RecoveredTasks fromBackup = new BinaryTaskCodec(true).recover(
+                backup, recovered.getLastGapEnd());
+        recovered.fillGapsFrom(fromBackup);
+        assertEquals(getDescriptions(tasks), getDescriptions(recovered.getTasks()));
+        assertTrue(recovered.getTasksFromBackup() > 0);
+    }
+
+    @Test
+    public void damagedJsonLineIsSkipped() throws IOException {
+        List<Task> tasks = createTasks(3);
+        TaskTypeAdapter taskAdapter = new TaskTypeAdapter();
+        new JsonTaskCodec(taskAdapter, true).write(file, tasks);
+        List<String> lines = Files.readAllLines(file.toPath());
+        lines.set(1, lines.get(1).replace("task 2", "task X"));
+        Files.write(file.toPath(), lines);
+
+        RecoveredTasks recovered = new JsonTaskCodec(taskAdapter, true).recover(file, null);
+        assertEquals(1, recovered.getSkippedRecords().size());
+        assertEquals(Arrays.asList("task 1", "task 3"), getDescriptions(recovered.getTasks()));
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private List<Task> createTasks(int count) {
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 1; i <= count; i++) {
+            Task task = new Task();
+            task.setTaskId(i);
+            task.setType(Task.Type.FLOATING);
+            task.setDescription("task " + i);
+            task.setRawInfo("raw " + i);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private List<String> getDescriptions(List<Task> tasks) {
+        List<String> descriptions = new ArrayList<String>();
+        for (Task task : tasks) {
+            descriptions.add(task.getDescription());
+        }
+        return descriptions;
+    }
+
+    private List<String> getRawInfos(List<Task> tasks) {
+        List<String> rawInfos = new ArrayList<String>();
+        for (Task task : tasks) {
+            rawInfos.add(task.getRawInfo());
+        }
+        return rawInfos;
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(position);
+            int value = output.read();
+            output.seek(position);
+            output.write(value ^ 0xFF);
+        }
+    }
+}
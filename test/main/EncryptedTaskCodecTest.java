@@ -0,0 +1,164 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncryptedTaskCodecTest {
+    private static final int RECORDS_PER_BLOCK = 64;
+
+    private File directory;
+    private File file;
+    private RecordCipher cipher;
+    private EncryptedTaskCodec codec;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fini-encrypted-test").toFile();
+        file = new File(directory, "savefile.txt");
+        cipher = new RecordCipher(new byte[32]);
+        codec = new EncryptedTaskCodec(new TaskTypeAdapter(), cipher);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        for (int count : new int[] { 0, 1, RECORDS_PER_BLOCK, 3 * RECORDS_PER_BLOCK + 5 }) {
+            List<Task> tasks = createTasks(count);
+            codec.write(file, tasks);
+            assertTrue(EncryptedTaskCodec.isEncryptedFile(file));
+            assertTrue(EncryptedTaskCodec.isCurrentVersion(file));
+            assertEquals(getDescriptions(tasks), getDescriptions(codec.read(file)));
+        }
+    }
+
+    @Test
+    public void damagedBlockIsSkipped() throws IOException {
+        List<Task> tasks = createTasks(3 * RECORDS_PER_BLOCK);
+        codec.write(file, tasks);
+        List<String> lines = readLines();
+        lines.set(2, "A" + lines.get(2).substring(1));
+        writeLines(lines);
+
+        RecoveredTasks recovered = codec.recover(file, null);
+        assertEquals(1, recovered.getSkippedRecords().size());
+        List<Task> expected = new ArrayList<Task>(tasks);
+        expected.subList(RECORDS_PER_BLOCK, 2 * RECORDS_PER_BLOCK).clear();
+        assertEquals(getDescriptions(expected), getDescriptions(recovered.getTasks()));
+    }
+
+    @Test
+    public void swappedBlocksDoNotOpen() throws IOException {
+        codec.write(file, createTasks(3 * RECORDS_PER_BLOCK));
+        List<String> lines = readLines();
+        String block = lines.get(1);
+        lines.set(1, lines.get(2));
+        lines.set(2, block);
+        writeLines(lines);
+
+        RecoveredTasks recovered = codec.recover(file, null);
+        assertEquals(2, recovered.getSkippedRecords().size());
+        assertEquals(RECORDS_PER_BLOCK, recovered.getTasks().size());
+    }
+
+    @Test
+    public void blockFromAnotherFileDoesNotOpen() throws IOException {
+        File otherFile = new File(directory, "other.txt");
+        codec.write(file, createTasks(2 * RECORDS_PER_BLOCK));
+        codec.write(otherFile, createTasks(2 * RECORDS_PER_BLOCK));
+        List<String> lines = readLines();
+        lines.set(1, Files.readAllLines(otherFile.toPath(), StandardCharsets.UTF_8).get(1));
+        writeLines(lines);
+
+        RecoveredTasks recovered = codec.recover(file, null);
+        assertEquals(1, recovered.getSkippedRecords().size());
+        assertEquals(RECORDS_PER_BLOCK, recovered.getTasks().size());
+    }
+
+    // Dropping whole blocks from the end leaves a file that still opens
+    @Test
+    public void cutOffFileIsNoticed() throws IOException {
+        List<Task> tasks = createTasks(3 * RECORDS_PER_BLOCK);
+        codec.write(file, tasks);
+        List<String> lines = readLines();
+        writeLines(lines.subList(0, 3));
+
+        RecoveredTasks recovered = codec.recover(file, null);
+        assertFalse(recovered.isComplete());
+        assertEquals(getDescriptions(tasks.subList(0, 2 * RECORDS_PER_BLOCK)),
+                     getDescriptions(recovered.getTasks()));
+
+        // the tasks after the last block come from the backup
+        File backup = new File(directory, "backup.txt");
+        codec.write(backup, tasks);
+        recovered.fillGapsFrom(codec.recover(backup, recovered.getLastGapEnd()));
+        assertEquals(getDescriptions(tasks), getDescriptions(recovered.getTasks()));
+    }
+
+    @Test
+    public void version1FileIsStillRead() throws IOException, GeneralSecurityException {
+        List<Task> tasks = createTasks(RECORDS_PER_BLOCK + 1);
+        codec.write(file, tasks);
+        List<String> lines = readLines();
+        String header = lines.get(0);
+        List<String> version1Lines = new ArrayList<String>();
+        version1Lines.add("FINI-AES-GCM 1");
+        version1Lines.add(cipher.seal(cipher.open(lines.get(1), header + " 1")));
+        version1Lines.add(cipher.seal(cipher.open(lines.get(2), header + " 2 last")));
+        writeLines(version1Lines);
+
+        assertTrue(EncryptedTaskCodec.isEncryptedFile(file));
+        assertFalse(EncryptedTaskCodec.isCurrentVersion(file));
+        assertEquals(getDescriptions(tasks), getDescriptions(codec.read(file)));
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private List<Task> createTasks(int count) {
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 1; i <= count; i++) {
+            Task task = new Task();
+            task.setTaskId(i);
+            task.setType(Task.Type.FLOATING);
+            task.setDescription("task " + i);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private List<String> getDescriptions(List<Task> tasks) {
+        List<String> descriptions = new ArrayList<String>();
+        for (Task task : tasks) {
+            descriptions.add(task.getDescription());
+        }
+        return descriptions;
+    }
+
+    private List<String> readLines() throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    private void writeLines(List<String> lines) throws IOException {
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,156 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+public class HistoryTest {
+    private static final long MEMORY_LIMIT = 1024 * 1024;
+
+    private File directory;
+    private File historyFile;
+    private Gson gson;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fini-history-test").toFile();
+        historyFile = new File(directory, "savefile.txt.history");
+        gson = new GsonBuilder()
+                .registerTypeAdapter(Task.class, new TaskTypeAdapter())
+                .registerTypeAdapter(LocalDate.class, new LocalDateTypeAdapter())
+                .registerTypeAdapter(LocalTime.class, new LocalTimeTypeAdapter())
+                .create();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void undoAndRedoAcrossRestart() {
+        undoAndRedoAcrossRestart(null);
+    }
+
+    @Test
+    public void undoAndRedoAcrossRestartWhenEncrypted() {
+        undoAndRedoAcrossRestart(new RecordCipher(new byte[32]));
+    }
+
+    // Dropping the oldest entries keeps the newer ones where undo finds them
+    @Test
+    public void droppedEntriesLeaveNewerOnesUndoable() {
+        History history = new History(historyFile, 4, 100, MEMORY_LIMIT, gson, null);
+        List<TaskList> states = new ArrayList<TaskList>();
+        states.add(TaskList.of(createTasks(1)));
+        for (int i = 2; i <= 6; i++) {
+            Task task = createTask(i);
+            states.add(runCommand(history, "add " + i, states.get(states.size() - 1),
+                                  tasks -> tasks.add(Collections.singletonList(task))));
+        }
+
+        TaskList tasks = states.get(5);
+        for (int i = 4; i >= 3; i--) {
+            tasks = history.getPreviousState(tasks);
+            assertEquals(describe(states.get(i)), describe(tasks));
+        }
+        assertFalse(history.hasPreviousState());
+        history.close();
+
+        History restarted = createHistory(null);
+        assertTrue(restarted.hasNextState());
+        assertEquals(describe(states.get(4)), describe(restarted.getNextState(tasks)));
+        restarted.close();
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private void undoAndRedoAcrossRestart(RecordCipher cipher) {
+        History history = createHistory(cipher);
+        TaskList first = TaskList.of(createTasks(3));
+        TaskList second = runCommand(history, "add 4", first,
+                tasks -> tasks.add(Collections.singletonList(createTask(4))));
+        TaskList third = runCommand(history, "done 2", second,
+                tasks -> tasks.replace(Collections.singletonList(tasks.get(2).withCompleted())));
+        history.close();
+
+        History restarted = createHistory(cipher);
+        assertTrue(restarted.hasPreviousState());
+        TaskList undone = restarted.getPreviousState(third);
+        assertEquals(describe(second), describe(undone));
+        assertEquals("done 2", restarted.getPreviousCommand());
+        undone = restarted.getPreviousState(undone);
+        assertEquals(describe(first), describe(undone));
+        assertFalse(restarted.hasPreviousState());
+        restarted.close();
+
+        // the position is kept too
+        History reopened = createHistory(cipher);
+        assertFalse(reopened.hasPreviousState());
+        assertEquals(describe(second), describe(reopened.getNextState(undone)));
+        assertEquals(describe(third), describe(reopened.getNextState(second)));
+        assertFalse(reopened.hasNextState());
+        reopened.close();
+    }
+
+    private History createHistory(RecordCipher cipher) {
+        return new History(historyFile, 100, 10, MEMORY_LIMIT, gson, cipher);
+    }
+
+    private TaskList runCommand(History history, String command, TaskList tasks,
+                                UnaryOperator<TaskList> change) {
+        history.storeCurrentState(tasks);
+        history.storeCommand(command);
+        TaskList changed = change.apply(tasks);
+        history.storeResultingState(changed);
+        return changed;
+    }
+
+    private List<Task> createTasks(int count) {
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 1; i <= count; i++) {
+            tasks.add(createTask(i));
+        }
+        return tasks;
+    }
+
+    private Task createTask(long taskId) {
+        Task task = new Task();
+        task.setTaskId(taskId);
+        task.setType(Task.Type.FLOATING);
+        task.setDescription("task " + taskId);
+        return task;
+    }
+
+    // Tasks read back from the log are new objects, so they are compared
+    // by their fields
+    private List<String> describe(TaskList tasks) {
+        List<String> descriptions = new ArrayList<String>();
+        for (Task task : tasks.toArrayList()) {
+            descriptions.add(task.getTaskId() + " " + task.getDescription()
+                             + (task.isCompleted() ? " done" : ""));
+        }
+        return descriptions;
+    }
+}
@@ -0,0 +1,226 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+public class JournalTest {
+    private File directory;
+    private File journalFile;
+    private Gson gson;
+    private RecordCipher cipher = new RecordCipher(new byte[32]);
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fini-journal-test").toFile();
+        journalFile = new File(directory, "savefile.txt.journal");
+        TaskTypeAdapter taskAdapter = new TaskTypeAdapter();
+        gson = new GsonBuilder()
+                .registerTypeAdapter(Task.class, taskAdapter)
+                .registerTypeAdapter(LocalDate.class, new LocalDateTypeAdapter())
+                .registerTypeAdapter(LocalTime.class, new LocalTimeTypeAdapter())
+                .create();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    // A crash cut the last record off, and the app appended after restarting
+    @Test
+    public void tornRecordIsSkippedAndLaterRecordsReplay() throws IOException {
+        Journal journal = createJournal();
+        journal.append(createEntries(1, 2));
+        cutOff(journalFile, 10);
+
+        createJournal().append(createEntries(3, 4));
+
+        assertEquals(Arrays.asList(1L, 3L, 4L), replay(createJournal()));
+    }
+
+    @Test
+    public void damagedRecordInTheMiddleIsSkipped() throws IOException {
+        Journal journal = createJournal();
+        journal.append(createEntries(1, 2, 3));
+        List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+        lines.set(1, lines.get(1).substring(0, lines.get(1).length() / 2));
+        Files.write(journalFile.toPath(), lines, StandardCharsets.UTF_8);
+
+        Journal replayed = createJournal();
+        assertEquals(Arrays.asList(1L, 3L), replay(replayed));
+        assertEquals(2, replayed.getRecordCount());
+    }
+
+    // Another instance may still be writing the last record
+    @Test
+    public void readFromStopsBeforeIncompleteRecord() throws IOException {
+        Journal journal = createJournal();
+        journal.append(createEntries(1));
+        long firstRecordEnd = journalFile.length();
+        journal.append(createEntries(2));
+        cutOff(journalFile, 10);
+
+        Journal reader = createJournal();
+        assertEquals(1, reader.readFrom(0).size());
+        assertEquals(firstRecordEnd, reader.getReadEnd());
+    }
+
+    @Test
+    public void readFromSkipsDamagedCompleteRecord() throws IOException {
+        Journal journal = createJournal();
+        journal.append(createEntries(1));
+        long offset = journalFile.length();
+        Files.write(journalFile.toPath(), "{\"type\":\"AD\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+        journal.append(createEntries(2));
+
+        Journal reader = createJournal();
+        ArrayList<JournalEntry> entries = reader.readFrom(offset);
+        assertEquals(1, entries.size());
+        assertEquals(2, entries.get(0).getTaskId());
+        assertEquals(journalFile.length(), reader.getReadEnd());
+    }
+
+    @Test
+    public void encryptedRecordsReplay() throws IOException {
+        Journal journal = createEncryptedJournal();
+        journal.append(createEntries(1, 2));
+        journal.append(createEntries(3));
+
+        Journal reader = createEncryptedJournal();
+        assertEquals(Arrays.asList(1L, 2L, 3L), replay(reader));
+        assertEquals(0, reader.getSkippedRecords().size());
+        assertEquals(3, reader.readFrom(0).size());
+    }
+
+    @Test
+    public void movedEncryptedRecordIsSkipped() throws IOException {
+        createEncryptedJournal().append(createEntries(1, 2, 3));
+        List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+        // a copy of the second record in place of the third
+        lines.set(3, lines.get(2));
+        Files.write(journalFile.toPath(), lines, StandardCharsets.UTF_8);
+
+        Journal reader = createEncryptedJournal();
+        assertEquals(Arrays.asList(1L, 2L), replay(reader));
+        assertEquals(1, reader.getSkippedRecords().size());
+    }
+
+    @Test
+    public void plainRecordInEncryptedJournalIsSkipped() throws IOException {
+        createEncryptedJournal().append(createEntries(1));
+        createJournal().append(createEntries(2));
+
+        assertEquals(Arrays.asList(1L), replay(createEncryptedJournal()));
+    }
+
+    @Test
+    public void plainRecordsAreOnlyReadWhileMigrating() throws IOException {
+        createJournal().append(createEntries(1, 2));
+
+        assertEquals(Arrays.asList(), replay(createEncryptedJournal()));
+        Journal migrating = createEncryptedJournal();
+        migrating.setAcceptsLegacyRecords(true);
+        assertEquals(Arrays.asList(1L, 2L), replay(migrating));
+    }
+
+    // They are sealed for their place before the first encrypted append
+    @Test
+    public void appendSealsPlainRecordsWhileMigrating() throws IOException {
+        createJournal().append(createEntries(1, 2));
+        Journal migrating = createEncryptedJournal();
+        migrating.setAcceptsLegacyRecords(true);
+        migrating.append(createEntries(3));
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), replay(createEncryptedJournal()));
+    }
+
+    @Test
+    public void dropRecordsBeforeKeepsEncryptedRecordsReadable() throws IOException {
+        Journal journal = createEncryptedJournal();
+        journal.append(createEntries(1, 2));
+        long offset = journalFile.length();
+        journal.append(createEntries(3, 4));
+        journal.dropRecordsBefore(offset);
+        journal.append(createEntries(5));
+
+        assertEquals(Arrays.asList(3L, 4L, 5L), replay(createEncryptedJournal()));
+    }
+
+    // Compaction takes the rotated records, new ones go to a fresh journal
+    @Test
+    public void rotatedRecordsReplayBeforeNewOnes() throws IOException {
+        File pendingFile = new File(directory, "savefile.txt.journal.pending");
+        for (RecordCipher recordCipher : new RecordCipher[] { null, cipher }) {
+            Journal journal = new Journal(journalFile, gson, recordCipher);
+            journal.append(createEntries(1, 2));
+            assertTrue(journal.rotateTo(pendingFile));
+            assertEquals(0, journal.getRecordCount());
+            journal.append(createEntries(3));
+
+            LinkedHashMap<Long, Task> tasks = new LinkedHashMap<Long, Task>();
+            new Journal(pendingFile, gson, recordCipher).replay(tasks);
+            new Journal(journalFile, gson, recordCipher).replay(tasks);
+            assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<Long>(tasks.keySet()));
+            pendingFile.delete();
+            journalFile.delete();
+        }
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private Journal createJournal() {
+        return new Journal(journalFile, gson);
+    }
+
+    private Journal createEncryptedJournal() {
+        return new Journal(journalFile, gson, cipher);
+    }
+
+    private List<JournalEntry> createEntries(long... taskIds) {
+        List<JournalEntry> entries = new ArrayList<JournalEntry>();
+        for (long taskId : taskIds) {
+            Task task = new Task();
+            task.setTaskId(taskId);
+            task.setDescription("task " + taskId);
+            entries.add(new JournalEntry(JournalEntry.Type.ADD, task));
+        }
+        return entries;
+    }
+
+    private List<Long> replay(Journal journal) {
+        LinkedHashMap<Long, Task> tasks = new LinkedHashMap<Long, Task>();
+        journal.replay(tasks);
+        return new ArrayList<Long>(tasks.keySet());
+    }
+
+    private static void cutOff(File file, int byteCount) throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.setLength(output.length() - byteCount);
+        }
+    }
+}
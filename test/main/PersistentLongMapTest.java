@@ -0,0 +1,145 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentLongMapTest {
+    private static final int KEY_COUNT = 10000;
+
+    @Test
+    public void putAndGet() {
+        long[] keys = { 0, 1, -1, 31, 32, Long.MIN_VALUE, Long.MAX_VALUE };
+        PersistentLongMap<String> map = PersistentLongMap.empty();
+        for (long key : keys) {
+            map = map.put(key, "value " + key);
+        }
+        assertEquals(keys.length, map.size());
+        for (long key : keys) {
+            assertEquals("value " + key, map.get(key));
+        }
+        assertNull(map.get(2));
+    }
+
+    @Test
+    public void putReplacesValue() {
+        PersistentLongMap<String> map = PersistentLongMap.<String>empty().put(1, "old");
+        PersistentLongMap<String> newMap = map.put(1, "new");
+        assertEquals(1, newMap.size());
+        assertEquals("new", newMap.get(1));
+        assertEquals("old", map.get(1));
+    }
+
+    @Test
+    public void putSameValueReturnsSameMap() {
+        String value = "value";
+        PersistentLongMap<String> map = PersistentLongMap.<String>empty().put(1, value);
+        assertSame(map, map.put(1, value));
+    }
+
+    @Test
+    public void removeMissingKeyReturnsSameMap() {
+        PersistentLongMap<String> map = createMap(100);
+        assertSame(map, map.remove(KEY_COUNT + 1));
+    }
+
+    // Nodes left with one entry are collapsed, the rest must still be found
+    @Test
+    public void removeCollapsesNodes() {
+        PersistentLongMap<String> map = createMap(KEY_COUNT);
+        List<Long> keys = shuffledKeys(KEY_COUNT);
+        int left = 5;
+        for (long key : keys.subList(left, keys.size())) {
+            map = map.remove(key);
+        }
+        assertEquals(left, map.size());
+        for (long key : keys.subList(0, left)) {
+            assertEquals("value " + key, map.get(key));
+        }
+        for (long key : keys.subList(left, keys.size())) {
+            assertNull(map.get(key));
+        }
+        for (long key : keys.subList(0, left)) {
+            map = map.remove(key);
+        }
+        assertEquals(0, map.size());
+        assertDifferences(map, PersistentLongMap.<String>empty(), new HashMap<Long, String[]>());
+    }
+
+    @Test
+    public void putThenRemoveHasNoDifference() {
+        PersistentLongMap<String> map = createMap(KEY_COUNT);
+        PersistentLongMap<String> newMap = map;
+        for (long key = KEY_COUNT; key < 2 * KEY_COUNT; key++) {
+            newMap = newMap.put(key, "value " + key);
+        }
+        for (long key = KEY_COUNT; key < 2 * KEY_COUNT; key++) {
+            newMap = newMap.remove(key);
+        }
+        assertEquals(map.size(), newMap.size());
+        assertDifferences(map, newMap, new HashMap<Long, String[]>());
+    }
+
+    @Test
+    public void forEachDifferenceReportsChangedKeys() {
+        PersistentLongMap<String> map = createMap(KEY_COUNT);
+        HashMap<Long, String[]> expected = new HashMap<Long, String[]>();
+        PersistentLongMap<String> newMap = map;
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            long key = random.nextInt(2 * KEY_COUNT);
+            String oldValue = map.get(key);
+            String newValue = random.nextBoolean() ? null : "changed " + key;
+            newMap = newValue == null ? newMap.remove(key) : newMap.put(key, newValue);
+            if (oldValue == null && newValue == null) {
+                expected.remove(key);
+            } else {
+                expected.put(key, new String[] { oldValue, newValue });
+            }
+        }
+        assertDifferences(map, newMap, expected);
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private PersistentLongMap<String> createMap(int keyCount) {
+        PersistentLongMap<String> map = PersistentLongMap.empty();
+        for (long key = 0; key < keyCount; key++) {
+            map = map.put(key, "value " + key);
+        }
+        return map;
+    }
+
+    private List<Long> shuffledKeys(int keyCount) {
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = 0; key < keyCount; key++) {
+            keys.add(key);
+        }
+        Collections.shuffle(keys, new Random(0));
+        return keys;
+    }
+
+    private void assertDifferences(PersistentLongMap<String> map,
+                                   PersistentLongMap<String> otherMap,
+                                   HashMap<Long, String[]> expected) {
+        HashMap<Long, String[]> differences = new HashMap<Long, String[]>();
+        map.forEachDifference(otherMap, (key, value, otherValue) -> {
+            assertNull("reported twice: " + key,
+                       differences.put(key, new String[] { value, otherValue }));
+        });
+        assertEquals(expected.keySet(), differences.keySet());
+        for (long key : expected.keySet()) {
+            assertEquals(expected.get(key)[0], differences.get(key)[0]);
+            assertEquals(expected.get(key)[1], differences.get(key)[1]);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public class PersistentVectorTest {
+    // empty, one leaf, two levels and three levels
+    private static final int[] SIZES = { 0, 1, 32, 33, 1024, 1025, 40000 };
+
+    @Test
+    public void ofKeepsOrder() {
+        for (int size : SIZES) {
+            List<Integer> elements = createElements(size);
+            assertElements(elements, PersistentVector.of(elements));
+        }
+    }
+
+    @Test
+    public void addAcrossLevels() {
+        List<Integer> elements = createElements(40000);
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        for (int element : elements) {
+            vector = vector.add(element);
+        }
+        assertElements(elements, vector);
+    }
+
+    @Test
+    public void addAfterOf() {
+        for (int size : SIZES) {
+            List<Integer> elements = createElements(size);
+            PersistentVector<Integer> vector = PersistentVector.of(elements);
+            for (int i = 0; i < 100; i++) {
+                elements.add(size + i);
+                vector = vector.add(size + i);
+            }
+            assertElements(elements, vector);
+        }
+    }
+
+    @Test
+    public void setLeavesOldVectorAlone() {
+        List<Integer> elements = createElements(1025);
+        PersistentVector<Integer> vector = PersistentVector.of(elements);
+        PersistentVector<Integer> newVector = vector.set(0, -1).set(1024, -2);
+        assertElements(elements, vector);
+        elements.set(0, -1);
+        elements.set(1024, -2);
+        assertElements(elements, newVector);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getPastTheEnd() {
+        PersistentVector.of(createElements(32)).get(32);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void setBeforeTheStart() {
+        PersistentVector.of(createElements(32)).set(-1, 0);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void iteratorPastTheEnd() {
+        Iterator<Integer> iterator = PersistentVector.of(createElements(1)).iterator();
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        iterator.next();
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private List<Integer> createElements(int size) {
+        List<Integer> elements = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            elements.add(i);
+        }
+        return elements;
+    }
+
+    private void assertElements(List<Integer> expected, PersistentVector<Integer> vector) {
+        assertEquals(expected.size(), vector.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), vector.get(i));
+        }
+        List<Integer> iterated = new ArrayList<Integer>();
+        for (Integer element : vector) {
+            iterated.add(element);
+        }
+        assertEquals(expected, iterated);
+    }
+}
@@ -0,0 +1,164 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TaskListTest {
+    @Test
+    public void addKeepsOrder() {
+        List<Task> tasks = createTasks(100);
+        TaskList list = TaskList.of(tasks.subList(0, 50)).add(tasks.subList(50, 100));
+        assertEquals(tasks, list.toArrayList());
+        assertSame(tasks.get(70), list.get(70));
+    }
+
+    @Test
+    public void addWithKnownIdReplaces() {
+        List<Task> tasks = createTasks(3);
+        Task completed = tasks.get(1).withCompleted();
+        TaskList list = TaskList.of(tasks).add(Collections.singletonList(completed));
+        assertEquals(Arrays.asList(tasks.get(0), completed, tasks.get(2)), list.toArrayList());
+    }
+
+    @Test
+    public void replaceLeavesOutUnknownIds() {
+        List<Task> tasks = createTasks(3);
+        TaskList list = TaskList.of(tasks).replace(Collections.singletonList(createTask(99)));
+        assertEquals(tasks, list.toArrayList());
+        assertNull(list.get(99));
+    }
+
+    // Removing most tasks drops the free slots, which renumbers every task
+    // but the first
+    @Test
+    public void removeCompactsAndKeepsOrder() {
+        List<Task> tasks = createTasks(1000);
+        TaskList list = TaskList.of(tasks);
+        List<Task> removed = new ArrayList<Task>();
+        List<Task> kept = new ArrayList<Task>();
+        for (Task task : tasks) {
+            (task.getTaskId() % 10 == 0 ? kept : removed).add(task);
+        }
+        TaskList newList = list.remove(removed);
+        assertEquals(kept, newList.toArrayList());
+        assertEquals(kept.size(), newList.size());
+        for (int i = 1; i < kept.size(); i++) {
+            assertTrue(newList.getPosition(kept.get(i - 1).getTaskId())
+                       < newList.getPosition(kept.get(i).getTaskId()));
+        }
+        HashSet<Long> movedTaskIds = new HashSet<Long>();
+        list.forEachMove(newList, (taskId, position, newPosition) -> movedTaskIds.add(taskId));
+        assertEquals(tasks.size() - 1, movedTaskIds.size());
+        assertEquals(-1, newList.getPosition(removed.get(0).getTaskId()));
+    }
+
+    @Test
+    public void insertAfterPutsTaskBack() {
+        List<Task> tasks = createTasks(100);
+        TaskList list = TaskList.of(tasks);
+        for (int i : new int[] { 0, 1, 50, 99 }) {
+            Task task = tasks.get(i);
+            Long previousTaskId = list.getPreviousTaskId(task.getTaskId());
+            TaskList removed = list.remove(Collections.singletonList(task));
+            TaskList insertedBack = removed.insertAfter(previousTaskId, task);
+            assertEquals(tasks, insertedBack.toArrayList());
+
+            // it takes the free slot in front of its next task, so no other task moves
+            HashSet<Long> movedTaskIds = new HashSet<Long>();
+            removed.forEachMove(insertedBack,
+                                (taskId, position, newPosition) -> movedTaskIds.add(taskId));
+            assertEquals(Collections.singleton(task.getTaskId()), movedTaskIds);
+        }
+    }
+
+    @Test
+    public void insertAfterUnknownTaskGoesLast() {
+        List<Task> tasks = createTasks(3);
+        Task task = createTask(99);
+        TaskList list = TaskList.of(tasks).insertAfter(42L, task);
+        assertEquals(Arrays.asList(tasks.get(0), tasks.get(1), tasks.get(2), task),
+                     list.toArrayList());
+        assertEquals(task, TaskList.of(tasks).insertAfter(null, task).toArrayList().get(0));
+    }
+
+    // More inserts after one task than there are free slots lays them out again
+    @Test
+    public void insertAfterSameTaskManyTimes() {
+        List<Task> tasks = createTasks(10);
+        TaskList list = TaskList.of(tasks);
+        List<Task> expected = new ArrayList<Task>(tasks);
+        for (int i = 0; i < 100; i++) {
+            Task task = createTask(1000 + i);
+            list = list.insertAfter(tasks.get(4).getTaskId(), task);
+            expected.add(5, task);
+        }
+        assertEquals(expected, list.toArrayList());
+        for (int i = 1; i < expected.size(); i++) {
+            assertEquals(Long.valueOf(expected.get(i - 1).getTaskId()),
+                         list.getPreviousTaskId(expected.get(i).getTaskId()));
+        }
+        assertNull(list.getPreviousTaskId(expected.get(0).getTaskId()));
+    }
+
+    @Test
+    public void forEachDifferenceReportsChangedTasks() {
+        List<Task> tasks = createTasks(1000);
+        TaskList list = TaskList.of(tasks);
+        Task completed = tasks.get(10).withCompleted();
+        Task added = createTask(5000);
+        TaskList newList = list.replace(Collections.singletonList(completed))
+                               .remove(Collections.singletonList(tasks.get(20)))
+                               .add(Collections.singletonList(added));
+        List<Task[]> differences = new ArrayList<Task[]>();
+        list.forEachDifference(newList, (taskId, task, newTask) -> {
+            differences.add(new Task[] { task, newTask });
+        });
+        assertEquals(3, differences.size());
+        for (Task[] difference : differences) {
+            if (difference[0] == tasks.get(10)) {
+                assertSame(completed, difference[1]);
+            } else if (difference[0] == tasks.get(20)) {
+                assertNull(difference[1]);
+            } else {
+                assertNull(difference[0]);
+                assertSame(added, difference[1]);
+            }
+        }
+    }
+
+    @Test
+    public void removingEverythingLeavesEmptyList() {
+        List<Task> tasks = createTasks(100);
+        TaskList list = TaskList.of(tasks).remove(tasks);
+        assertTrue(list.isEmpty());
+        assertEquals(Collections.emptyList(), list.toArrayList());
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private List<Task> createTasks(int count) {
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(createTask(i));
+        }
+        return tasks;
+    }
+
+    private Task createTask(long taskId) {
+        Task task = new Task();
+        task.setTaskId(taskId);
+        task.setDescription("task " + taskId);
+        return task;
+    }
+}
@@ -0,0 +1,100 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+    // long enough that only flush() gets anything written during a test
+    private static final long FLUSH_DELAY = 60000;
+
+    private List<List<JournalEntry>> journalWrites = new CopyOnWriteArrayList<List<JournalEntry>>();
+    private List<ArrayList<Task>> snapshotWrites = new CopyOnWriteArrayList<ArrayList<Task>>();
+
+    // As on shutdown, flush() writes what is queued without waiting for the
+    // interval, and entries queued together are appended together
+    @Test
+    public void flushWritesQueuedEntries() {
+        WriteBehindQueue queue = createQueue(WriteBehindQueue.FlushPolicy.INTERVAL,
+                                             entries -> journalWrites.add(entries));
+        queue.enqueueEntries(createEntries(1, 2));
+        queue.enqueueEntries(createEntries(3));
+        assertTrue(journalWrites.isEmpty());
+
+        assertTrue(queue.flush());
+        assertEquals(1, journalWrites.size());
+        assertEquals(Arrays.asList(1L, 2L, 3L), getTaskIds(journalWrites.get(0)));
+        assertFalse(queue.hasFailedWrites());
+    }
+
+    @Test
+    public void snapshotReplacesQueuedEntries() {
+        WriteBehindQueue queue = createQueue(WriteBehindQueue.FlushPolicy.GROUP_COMMIT,
+                                             entries -> journalWrites.add(entries));
+        queue.enqueueEntries(createEntries(1));
+        ArrayList<Task> snapshot = new ArrayList<Task>();
+        queue.enqueueSnapshot(snapshot);
+
+        assertTrue(queue.flush());
+        assertTrue(journalWrites.isEmpty());
+        assertEquals(Collections.singletonList(snapshot), snapshotWrites);
+    }
+
+    // A failed write stays queued, and a later flush writes it
+    @Test
+    public void failedWriteIsKeptAndRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        WriteBehindQueue queue = createQueue(WriteBehindQueue.FlushPolicy.IMMEDIATE, entries -> {
+            if (attempts.incrementAndGet() == 1) {
+                return false;
+            }
+            return journalWrites.add(entries);
+        });
+        queue.enqueueEntries(createEntries(1));
+
+        assertFalse(queue.flush());
+        assertTrue(queue.hasFailedWrites());
+        assertTrue(queue.flush());
+        assertFalse(queue.hasFailedWrites());
+        assertEquals(1, journalWrites.size());
+        assertEquals(Arrays.asList(1L), getTaskIds(journalWrites.get(0)));
+    }
+
+    // ================================================================
+    // Utility methods
+    // ================================================================
+    private WriteBehindQueue createQueue(WriteBehindQueue.FlushPolicy flushPolicy,
+                                         Function<List<JournalEntry>, Boolean> journalWriter) {
+        return new WriteBehindQueue(tasks -> snapshotWrites.add(tasks), journalWriter,
+                                    flushPolicy, FLUSH_DELAY);
+    }
+
+    private List<JournalEntry> createEntries(long... taskIds) {
+        List<JournalEntry> entries = new ArrayList<JournalEntry>();
+        for (long taskId : taskIds) {
+            Task task = new Task();
+            task.setTaskId(taskId);
+            task.setDescription("task " + taskId);
+            entries.add(new JournalEntry(JournalEntry.Type.ADD, task));
+        }
+        return entries;
+    }
+
+    private List<Long> getTaskIds(List<JournalEntry> entries) {
+        List<Long> taskIds = new ArrayList<Long>();
+        for (JournalEntry entry : entries) {
+            taskIds.add(entry.getTaskId());
+        }
+        return taskIds;
+    }
+}